@@ -0,0 +1,374 @@
+package com.jlox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+// A small timing harness for the phases of jlox, run it on generated lox sources with:
+// java -cp bin com.jlox.Benchmark <case> [lines]
+// Each case is warmed up first and then reports the median time of the measured runs, use JMH for anything more precise
+// The parser cases allocate a tree per run, give them a fixed heap (-Xms2g -Xmx2g) to keep heap resizing out of the numbers
+public class Benchmark {
+    private static final int WARMUP_RUNS = 30;
+    private static final int MEASURED_RUNS = 30;
+
+    // the runs of a script before HotSpot compiles the methods the JitCompiler generated for it, see the repeated case
+    private static final int REPEATED_WARMUP_RUNS = 15_000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("usage: Benchmark <identifiers|parallel|numbers|comments|expressions|ast|blocks|engines|globals|profile|strings|print|edits|repeated> [lines]");
+            System.exit(64);
+        }
+
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        switch (args[0]) {
+            case "identifiers":
+                String source = identifierHeavySource(lines);
+                time("lex identifiers", source.length(), () -> sink = new Lexer(source).scanTokens());
+                break;
+            case "parallel":
+                String large = identifierHeavySource(lines);
+                time("lex sequential", large.length(), () -> sink = new Lexer(large).scanTokens());
+                time("lex parallel", large.length(), () -> sink = ParallelLexer.scanTokens(large));
+                break;
+            case "numbers":
+                String numbers = numberHeavySource(lines);
+                time("lex numbers and convert their literals", numbers.length(), () -> {
+                    TokenBuffer tokens = new Lexer(numbers).scanTokens();
+                    for (int i = 0; i < tokens.size(); i++) {
+                        if (tokens.type(i) == TokenType.NUMBER) sink = tokens.literal(i);
+                    }
+                });
+                break;
+            case "comments":
+                String commented = commentHeavySource(lines);
+                time("lex comments and strings", commented.length(), () -> sink = new Lexer(commented).scanTokens());
+                CharSequence mapped = mapped(commented);
+                time("lex comments and strings, mapped", commented.length(), () -> sink = new Lexer(mapped).scanTokens());
+                break;
+            case "expressions":
+                TokenBuffer expressions = new Lexer(expressionHeavySource(lines)).scanTokens();
+                time("parse expressions", expressions.source.length(), () -> sink = new Parser(expressions).startParsing());
+                time("parse expressions parallel", expressions.source.length(), () -> sink = ParallelParser.parse(expressions));
+                break;
+            case "ast":
+                String program = expressionHeavySource(lines);
+                long before = usedHeap();
+                List<Stmt> trees = new Parser(new Lexer(program).scanTokens()).startParsing();
+                long treeBytes = usedHeap() - before;
+                FlatAst flat = FlatAst.encode(trees);
+                trees = null;
+                long flatBytes = usedHeap() - before;
+                System.out.printf("Stmt/Expr trees: %.1f MB, flat: %.1f MB%n", treeBytes / 1e6, flatBytes / 1e6);
+                time("encode", program.length(), () -> sink = FlatAst.encode(new Parser(new Lexer(program).scanTokens()).startParsing()));
+                time("decode", program.length(), () -> {
+                    for (Stmt statement : flat.statements()) sink = statement;
+                });
+                break;
+            case "blocks":
+                String nested = nestedBlockSource(lines);
+                List<Stmt> statements = new Parser(new Lexer(nested).scanTokens()).startParsing();
+                time("interpret nested blocks", nested.length(), () -> new Interpreter().interpret(statements));
+                break;
+            case "engines":
+                String arithmetic = arithmeticSource(lines);
+                List<Stmt> arithmeticProgram = new Parser(new Lexer(arithmetic).scanTokens()).startParsing();
+                time("tree walking interpreter", arithmetic.length(), () -> new Interpreter().interpret(arithmeticProgram));
+                allocated("tree walking interpreter", () -> new Interpreter().interpret(arithmeticProgram));
+                time("vm, compile and run", arithmetic.length(), () -> new VM().interpret(arithmeticProgram));
+                Chunk chunk = BytecodeCompiler.compile(arithmeticProgram);
+                time("vm, run", arithmetic.length(), () -> new VM().run(chunk));
+                time("closures, convert and run", arithmetic.length(), () -> new ClosureCompiler().interpret(arithmeticProgram));
+                ClosureCompiler closures = new ClosureCompiler();
+                ClosureCompiler.Action converted = closures.compile(arithmeticProgram);
+                time("closures, run", arithmetic.length(), () -> closures.run(converted));
+                time("jit, compile and run", arithmetic.length(), () -> new JitCompiler().interpret(arithmeticProgram));
+                JitCompiler jit = new JitCompiler();
+                JitCompiler.Script script = jit.compile(arithmeticProgram);
+                time("jit, run", arithmetic.length(), () -> jit.run(script));
+                break;
+            case "repeated":
+                // a script run again and again in the same JVM (try 3000 lines): the methods of the JitCompiler run in
+                // HotSpot's interpreter until they have been called thousands of times, the lambdas of the
+                // ClosureCompiler are compiled early since all the statements share them
+                String repeated = arithmeticSource(lines);
+                List<Stmt> repeatedProgram = new Parser(new Lexer(repeated).scanTokens()).startParsing();
+                ClosureCompiler repeatedClosures = new ClosureCompiler();
+                ClosureCompiler.Action repeatedActions = repeatedClosures.compile(repeatedProgram);
+                time("closures, run after " + REPEATED_WARMUP_RUNS + " runs", repeated.length(), REPEATED_WARMUP_RUNS,
+                    () -> repeatedClosures.run(repeatedActions));
+                JitCompiler repeatedJit = new JitCompiler();
+                JitCompiler.Script repeatedCode = repeatedJit.compile(repeatedProgram);
+                time("jit, run after " + REPEATED_WARMUP_RUNS + " runs", repeated.length(), REPEATED_WARMUP_RUNS,
+                    () -> repeatedJit.run(repeatedCode));
+                break;
+            case "globals":
+                String globalScript = globalSource(lines);
+                List<Stmt> globalProgram = new Parser(new Lexer(globalScript).scanTokens()).startParsing();
+                time("globals, tree walking interpreter", globalScript.length(), () -> new Interpreter().interpret(globalProgram));
+                // the same globals for every run, as for a script run again by --watch
+                Chunk globalChunk = BytecodeCompiler.compile(globalProgram);
+                VM globalVm = new VM();
+                time("globals, vm, run", globalScript.length(), () -> globalVm.run(globalChunk));
+                ClosureCompiler globalClosures = new ClosureCompiler();
+                ClosureCompiler.Action globalActions = globalClosures.compile(globalProgram);
+                time("globals, closures, run", globalScript.length(), () -> globalClosures.run(globalActions));
+                JitCompiler globalJit = new JitCompiler();
+                JitCompiler.Script globalCode = globalJit.compile(globalProgram);
+                time("globals, jit, run", globalScript.length(), () -> globalJit.run(globalCode));
+                break;
+            case "profile":
+                String profiled = arithmeticSource(lines);
+                List<Stmt> profiledProgram = new Parser(new Lexer(profiled).scanTokens()).startParsing();
+                Profiler profiler = new Profiler();
+                overhead("tree walking interpreter", "profiled", profiled.length(),
+                    () -> new Interpreter().interpret(profiledProgram),
+                    () -> new Interpreter(new OutputSink(System.out, OutputSink.FlushPolicy.WHEN_FULL), profiler)
+                        .interpret(profiledProgram));
+                break;
+            case "strings":
+                String concatenating = concatenationSource(lines);
+                List<Stmt> concatenations = new Parser(new Lexer(concatenating).scanTokens()).startParsing();
+                time("concatenate strings", concatenating.length(), () -> new Interpreter().interpret(concatenations));
+                time("concatenate strings, vm", concatenating.length(), () -> new VM().interpret(concatenations));
+                break;
+            case "print":
+                String report = reportSource(lines);
+                List<Stmt> reportProgram = new Parser(new Lexer(report).scanTokens()).startParsing();
+                // a stream that drops the output, like System.out redirected to /dev/null
+                PrintStream discard = new PrintStream(OutputStream.nullOutputStream(), true);
+                time("print a report", report.length(), () ->
+                    new Interpreter(new OutputSink(discard, OutputSink.FlushPolicy.WHEN_FULL)).interpret(reportProgram));
+                time("print a report, flushing every line", report.length(), () ->
+                    new Interpreter(new OutputSink(discard, OutputSink.FlushPolicy.EVERY_LINE)).interpret(reportProgram));
+                allocated("print a report", () ->
+                    new Interpreter(new OutputSink(discard, OutputSink.FlushPolicy.WHEN_FULL)).interpret(reportProgram));
+                break;
+            case "edits":
+                // a newline typed in the first declaration and deleted again moves every declaration after it by a
+                // line, which should not make the IncrementalParser lex and parse them again
+                String edited = expressionHeavySource(lines);
+                IncrementalParser frontEnd = new IncrementalParser(edited);
+                int offset = edited.indexOf(" * b");
+                time("insert and delete a newline at the top", edited.length(), () -> {
+                    frontEnd.edit(offset, 0, "\n");
+                    checkReparsed(frontEnd);
+                    frontEnd.edit(offset, 1, "");
+                    checkReparsed(frontEnd);
+                });
+                break;
+            default:
+                System.out.println("unknown benchmark " + args[0]);
+                System.exit(64);
+        }
+    }
+
+    // the bytes held by reachable objects, roughly
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void time(String name, int sourceLength, Runnable work) {
+        time(name, sourceLength, WARMUP_RUNS, work);
+    }
+
+    private static void time(String name, int sourceLength, int warmupRuns, Runnable work) {
+        for (int i = 0; i < warmupRuns; i++) {
+            work.run();
+        }
+
+        long[] runs = new long[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long begin = System.nanoTime();
+            work.run();
+            runs[i] = System.nanoTime() - begin;
+        }
+        Arrays.sort(runs);
+        double millis = runs[MEASURED_RUNS / 2] / 1e6;
+
+        System.out.printf("%s: %.2f ms/run, %.1f MB/s%n", name, millis, sourceLength / 1e3 / millis);
+    }
+
+    // Times the work and the same work with something added, runs of the two alternate so that a JIT compilation or
+    // a noisy neighbour in the middle of the measurement hits both alike: the overhead is a few percent, timing one
+    // after the other moves it by ten either way
+    private static void overhead(String name, String added, int sourceLength, Runnable work, Runnable withAdded) {
+        for (int i = 0; i < WARMUP_RUNS * 10; i++) {
+            work.run();
+            withAdded.run();
+        }
+
+        int measuredRuns = MEASURED_RUNS * 10;
+        long[] runs = new long[measuredRuns];
+        long[] addedRuns = new long[measuredRuns];
+        for (int i = 0; i < measuredRuns; i++) {
+            long begin = System.nanoTime();
+            work.run();
+            long middle = System.nanoTime();
+            withAdded.run();
+            runs[i] = middle - begin;
+            addedRuns[i] = System.nanoTime() - middle;
+        }
+        Arrays.sort(runs);
+        Arrays.sort(addedRuns);
+        double millis = runs[measuredRuns / 2] / 1e6;
+        double addedMillis = addedRuns[measuredRuns / 2] / 1e6;
+
+        System.out.printf("%s: %.2f ms/run, %.1f MB/s%n", name, millis, sourceLength / 1e3 / millis);
+        System.out.printf("%s, %s: %.2f ms/run, %.1f MB/s, %+.1f%%%n", name, added, addedMillis,
+            sourceLength / 1e3 / addedMillis, 100 * (addedMillis / millis - 1));
+    }
+
+    private static void checkReparsed(IncrementalParser frontEnd) {
+        if (frontEnd.reparsedCount != 1) {
+            throw new IllegalStateException("an edit inside a declaration lexed and parsed "
+                + frontEnd.reparsedCount + " declarations again");
+        }
+    }
+
+    // the bytes a run allocates, like JMH's -prof gc reports them, once it is warmed up
+    private static void allocated(String name, Runnable work) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            work.run();
+        }
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            work.run();
+        }
+        long bytes = (threads.getCurrentThreadAllocatedBytes() - before) / MEASURED_RUNS;
+
+        System.out.printf("%s: %.1f KB allocated/run%n", name, bytes / 1e3);
+    }
+
+    // a block comment, an indented statement with a long string and a line comment per line
+    private static String commentHeavySource(int lines) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            builder.append("/* the value below is generated, do not edit it by hand: ").append(i).append(" */\n");
+            builder.append("        print \"row ").append(i).append(" of the generated report, padded to be long enough\";");
+            builder.append("    // and a trailing comment explaining the row\n");
+        }
+        return builder.toString();
+    }
+
+    private static CharSequence mapped(String source) {
+        try {
+            Path file = Files.createTempFile("benchmark", ".lox");
+            file.toFile().deleteOnExit();
+            Files.writeString(file, source);
+            return MappedSource.map(file);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // arithmetic and if statements on locals, in a block: x = (x * 3 + y) / 2 - 1; if (x > y) y = y + x; else y = y - 1;
+    private static String arithmeticSource(int lines) {
+        StringBuilder builder = new StringBuilder("{ var x = 1; var y = 2; var z = 0;\n");
+        for (int i = 0; i < lines; i++) {
+            builder.append("x = (x * 3 + y) / 2 - ").append(i % 7).append(";\n");
+            builder.append("if (x > y) y = y + x / 4; else { z = z + 1; y = y - 1; }\n");
+            builder.append("z = z >= 3 ? 0 : z + x - y;\n");
+        }
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    // the lines of arithmeticSource() on global variables, inside blocks that each declare a variable of their own
+    private static String globalSource(int lines) {
+        StringBuilder builder = new StringBuilder("var x = 1; var y = 2; var z = 0;\n{ var a = 1; { var b = 2;\n");
+        for (int i = 0; i < lines; i++) {
+            builder.append("x = (x * 3 + y) / 2 - ").append(i % 7).append(";\n");
+            builder.append("if (x > y) y = y + x / 4; else { z = z + 1; y = y - 1; }\n");
+            builder.append("z = z >= 3 ? 0 : z + x - y;\n");
+        }
+        builder.append("} }\n");
+        return builder.toString();
+    }
+
+    // a string built a line at a time: s = s + "row 3 of the generated report, "; and compared once it is complete
+    private static String concatenationSource(int lines) {
+        StringBuilder builder = new StringBuilder("{ var s = \"\";\n");
+        for (int i = 0; i < lines; i++) {
+            builder.append("s = s + \"row ").append(i).append(" of the generated report, \";\n");
+        }
+        builder.append("var done = s == \"\";\n}\n");
+        return builder.toString();
+    }
+
+    // lines like: print "row 3"; print total = total + 3 * 1.25; print total / 7;
+    private static String reportSource(int lines) {
+        StringBuilder builder = new StringBuilder("{ var total = 0;\n");
+        for (int i = 0; i < lines; i++) {
+            builder.append("print \"row ").append(i).append("\"; print total = total + ").append(i % 10)
+                   .append(" * 1.25; print total / 7;\n");
+        }
+        builder.append("}\n");
+        return builder.toString();
+    }
+
+    // lines like: total = total + v_0 * v_7 - v_3; inside blocks nested 8 deep that each declare a variable
+    private static String nestedBlockSource(int lines) {
+        StringBuilder builder = new StringBuilder("var total = 0;\n");
+        for (int depth = 0; depth < 8; depth++) {
+            builder.append("{ var v_").append(depth).append(" = ").append(depth).append(";\n");
+        }
+        for (int i = 0; i < lines; i++) {
+            builder.append("total = total + v_").append(i % 8).append(" * v_7 - v_").append((i * 3) % 8).append(";\n");
+        }
+        for (int depth = 0; depth < 8; depth++) {
+            builder.append("}\n");
+        }
+        return builder.toString();
+    }
+
+    // lines like: var r_3 = -(a + 3) * b / 2 >= c - 1 == !done ? x = y : "none";
+    private static String expressionHeavySource(int lines) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            int n = i % 50;
+            builder.append("var r_").append(n).append(" = -(a + ").append(n).append(") * b / 2 >= c - 1 == !done")
+                   .append(" ? x = y : \"none\";\n");
+            builder.append("print (r_").append(n).append(" + 1) * (r_").append(n).append(" - 1) < limit != (total > 0);\n");
+        }
+        return builder.toString();
+    }
+
+    // lines like: print 1234 + 56.78 * 0.5 - 3;
+    private static String numberHeavySource(int lines) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            builder.append("print ").append(i).append(" + ").append(i % 1000).append('.').append(i % 97)
+                   .append(" * 0.5 - ").append(i % 10).append(" / 12.375;\n");
+        }
+        return builder.toString();
+    }
+
+    // lines like: var total_3 = counter + index_3 * limit; print total_3 and index;
+    private static String identifierHeavySource(int lines) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            int n = i % 50;
+            builder.append("var total_").append(n).append(" = counter + index_").append(n).append(" * limit;\n");
+            builder.append("print total_").append(n).append(" == index or this_is_a_longer_name;\n");
+        }
+        return builder.toString();
+    }
+}
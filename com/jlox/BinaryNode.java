@@ -0,0 +1,95 @@
+package com.jlox;
+
+// How the Interpreter evaluates a binary operator on operands that are not both numbers, specialized to the operand
+// types the site has seen. Two numbers never get here, the Interpreter does their arithmetic unboxed.
+// Every Expr.Binary starts out UNINITIALIZED. Its first evaluation looks at the operator and the operand types and
+// rewrites the site's node to one that handles only that case, e.g. StringConcat, with the operator switch and the
+// type checks gone. A specialized node still guards its operands; when the guard fails it deoptimizes the site to
+// GENERIC, which handles everything and stays, so that a site never flip-flops
+abstract class BinaryNode {
+    static final BinaryNode UNINITIALIZED = new Uninitialized();
+    static final BinaryNode GENERIC = new Generic();
+
+    // the nodes keep no state, so the sites share them
+    private static final BinaryNode STRING_CONCAT = new StringConcat();
+
+    abstract Object execute(Expr.Binary site, Object left, Object right);
+
+    // a guard failed: from now on the site takes the slow path
+    private static Object deoptimize(Expr.Binary site, Object left, Object right) {
+        site.node = GENERIC;
+        return GENERIC.execute(site, left, right);
+    }
+
+    private static BinaryNode specialize(TokenType operator, Object left, Object right) {
+        if (left instanceof CharSequence && right instanceof CharSequence && operator == TokenType.PLUS) {
+            return STRING_CONCAT;
+        }
+
+        // including the operand types that fail, the generic node reports them
+        return GENERIC;
+    }
+
+    private static final class Uninitialized extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            BinaryNode node = specialize(site.operator.tokenType, left, right);
+            site.node = node;
+            return node.execute(site, left, right);
+        }
+    }
+
+    private static final class StringConcat extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof CharSequence a && right instanceof CharSequence b) return Rope.concat(a, b);
+            return deoptimize(site, left, right);
+        }
+    }
+
+    // what the Interpreter used to do for every binary operator
+    private static final class Generic extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            Token operator = site.operator;
+            switch (operator.tokenType) {
+                case TokenType.MINUS:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left - (double)right;
+                case TokenType.STAR:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left * (double)right;
+                case TokenType.SLASH:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left / (double)right;
+                case TokenType.PLUS:
+                    if (left instanceof CharSequence && right instanceof CharSequence) {
+                        return Rope.concat((CharSequence)left, (CharSequence)right);
+                    }
+                    if (left instanceof Double && right instanceof Double) {
+                        return (double)left + (double)right;
+                    }
+                    throw new RuntimeError(operator, "Operands must be two strings or two numbers");
+                case TokenType.GREATER:
+                    return (double)left > (double)right;
+                case TokenType.GREATER_EQUALS:
+                    return (double)left >= (double)right;
+                case TokenType.LESSER:
+                    return (double)left < (double)right;
+                case TokenType.LESSER_EQUALS:
+                    return (double)left <= (double)right;
+                case TokenType.EQUALS_EQUALS:
+                    return Interpreter.isEqual(left, right);
+                case TokenType.BANG_EQUALS:
+                    return !Interpreter.isEqual(left, right);
+                default:
+                    return null;
+            }
+        }
+
+        private static void checkNumberOperands(Token operator, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return;
+            throw new RuntimeError(operator, "Operand must be a number");
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jlox.Expr.Assignment;
+import com.jlox.Expr.Variable;
+import com.jlox.Stmt.BlockStmt;
+import com.jlox.Stmt.IfStmt;
+import com.jlox.Stmt.VarDecStmt;
+
+// Compiles resolved statements into a Chunk for the VM
+// Expressions leave their value on the stack, statements leave the stack as they found it. Globals are looked up by
+// their name Token, which is kept in the constant table so that the errors are the ones of the tree walker.
+// There are no closures, so instead of a frame per block the locals of all the blocks get a slot in one array:
+// a block's slots start after the ones of the blocks around it and sibling blocks share the same slots
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private int[] code = new int[256];
+    private int[] lines = new int[256];
+    private int size = 0;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    // the first slot of every enclosing block, innermost last
+    private final List<Integer> blockBases = new ArrayList<>();
+    private int localCount = 0;
+
+    // the first slot that none of the enclosing blocks uses
+    private int nextSlot = 0;
+
+    private int stackDepth = 0;
+    private int maxStack = 0;
+
+    // the line of the token compiled last
+    private int line = 1;
+
+    /**
+     * Compiles top level statements, running the Resolver on them first
+     */
+    static Chunk compile(List<Stmt> statements) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        Resolver resolver = new Resolver();
+        for (Stmt statement : statements) {
+            resolver.resolveTopLevel(statement);
+            compiler.statement(statement);
+        }
+        compiler.emit(Chunk.RETURN);
+
+        return new Chunk(Arrays.copyOf(compiler.code, compiler.size), Arrays.copyOf(compiler.lines, compiler.size),
+            compiler.constants.toArray(), compiler.localCount, compiler.maxStack);
+    }
+
+    private void statement(Stmt statement) {
+        statement.accept(this);
+    }
+
+    private void expression(Expr expression) {
+        if (expression == null) {
+            emit(Chunk.MISSING);
+            push();
+            return;
+        }
+        expression.accept(this);
+    }
+
+    @Override
+    public Void visitExprStmt(Stmt.ExprStmt expressionStatement) {
+        expression(expressionStatement.expression);
+        emit(Chunk.POP);
+        pop();
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.PrintStmt printStatement) {
+        expression(printStatement.expression);
+        emit(Chunk.PRINT);
+        pop();
+        return null;
+    }
+
+    @Override
+    public Void visitVarDecStmt(VarDecStmt varDecStatement) {
+        if (varDecStatement.initialiser != null) {
+            expression(varDecStatement.initialiser);
+        }
+        else {
+            emit(Chunk.NIL);
+            push();
+        }
+
+        line = varDecStatement.name.line();
+        if (varDecStatement.slot == Resolver.GLOBAL) {
+            emit(Chunk.DEFINE_GLOBAL, constant(varDecStatement.name));
+        }
+        else {
+            emit(Chunk.DEFINE_LOCAL, blockBases.get(blockBases.size() - 1) + varDecStatement.slot);
+        }
+        pop();
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(BlockStmt blockStatement) {
+        // a block without variables has no frame to count, see Resolver
+        boolean framed = blockStatement.slotCount > 0;
+        int base = nextSlot;
+        if (framed) blockBases.add(base);
+        nextSlot = base + blockStatement.slotCount;
+        localCount = Math.max(localCount, nextSlot);
+
+        for (Stmt statement : blockStatement.blockStatementList) {
+            statement(statement);
+        }
+
+        if (framed) blockBases.remove(blockBases.size() - 1);
+        nextSlot = base;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(IfStmt ifStatement) {
+        expression(ifStatement.conditional);
+        int elseJump = emitJump(Chunk.JUMP_IF_FALSE);
+        pop();
+
+        statement(ifStatement.thenStatement);
+
+        if (ifStatement.elseStatemeStmt == null) {
+            patchJump(elseJump);
+            return null;
+        }
+
+        int endJump = emitJump(Chunk.JUMP);
+        patchJump(elseJump);
+        statement(ifStatement.elseStatemeStmt);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(Expr.Binary expression) {
+        expression(expression.left);
+        expression(expression.right);
+
+        line = expression.operator.line();
+        switch (expression.operator.tokenType) {
+            case TokenType.PLUS:
+                emit(Chunk.ADD);
+                break;
+            case TokenType.MINUS:
+                emit(Chunk.SUBTRACT);
+                break;
+            case TokenType.STAR:
+                emit(Chunk.MULTIPLY);
+                break;
+            case TokenType.SLASH:
+                emit(Chunk.DIVIDE);
+                break;
+            case TokenType.GREATER:
+                emit(Chunk.GREATER);
+                break;
+            case TokenType.GREATER_EQUALS:
+                emit(Chunk.GREATER_EQUALS);
+                break;
+            case TokenType.LESSER:
+                emit(Chunk.LESSER);
+                break;
+            case TokenType.LESSER_EQUALS:
+                emit(Chunk.LESSER_EQUALS);
+                break;
+            case TokenType.EQUALS_EQUALS:
+                emit(Chunk.EQUALS_EQUALS);
+                break;
+            case TokenType.BANG_EQUALS:
+                emit(Chunk.BANG_EQUALS);
+                break;
+            default:
+                throw new IllegalStateException("unknown binary operator " + expression.operator.tokenType);
+        }
+        pop();
+        return null;
+    }
+
+    @Override
+    public Void visitUnary(Expr.Unary expression) {
+        expression(expression.expression);
+
+        line = expression.operator.line();
+        emit(expression.operator.tokenType == TokenType.MINUS ? Chunk.NEGATE : Chunk.NOT);
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(Expr.Grouping expression) {
+        expression(expression.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteral(Expr.Literal expression) {
+        Object value = expression.value;
+        if (value == null) {
+            emit(Chunk.NIL);
+        }
+        else if (value instanceof Boolean) {
+            emit((boolean)value ? Chunk.TRUE : Chunk.FALSE);
+        }
+        else {
+            emit(Chunk.CONSTANT, constant(value));
+        }
+        push();
+        return null;
+    }
+
+    @Override
+    public Void visitTernary(Expr.Ternary expression) {
+        expression(expression.conditional);
+        int falseJump = emitJump(Chunk.JUMP_IF_NOT_TRUE);
+        pop();
+
+        expression(expression.trueBranch);
+        int endJump = emitJump(Chunk.JUMP);
+
+        // only one of the branches pushes its value
+        pop();
+        patchJump(falseJump);
+        expression(expression.falseBranch);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitVariable(Variable expression) {
+        line = expression.name.line();
+        if (expression.depth == Resolver.GLOBAL) {
+            emit(Chunk.GET_GLOBAL, constant(new GlobalCache(expression.name)));
+        }
+        else {
+            emit(Chunk.GET_LOCAL, blockBases.get(blockBases.size() - 1 - expression.depth) + expression.slot);
+        }
+        push();
+        return null;
+    }
+
+    @Override
+    public Void visitAssignment(Assignment assignment) {
+        expression(assignment.expression);
+
+        line = assignment.name.line();
+        if (assignment.depth == Resolver.GLOBAL) {
+            emit(Chunk.SET_GLOBAL, constant(new GlobalCache(assignment.name)));
+        }
+        else {
+            emit(Chunk.SET_LOCAL, blockBases.get(blockBases.size() - 1 - assignment.depth) + assignment.slot);
+        }
+        return null;
+    }
+
+    private void emit(int opcode) {
+        if (size + 2 > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+            lines = Arrays.copyOf(lines, lines.length * 2);
+        }
+        code[size] = opcode;
+        lines[size] = line;
+        size++;
+    }
+
+    private void emit(int opcode, int operand) {
+        emit(opcode);
+        code[size] = operand;
+        lines[size] = line;
+        size++;
+    }
+
+    // emits a jump and returns where its offset goes, see patchJump()
+    private int emitJump(int opcode) {
+        emit(opcode, 0);
+        return size - 1;
+    }
+
+    // points the jump at the next instruction, offsets are relative to the end of the jump instruction
+    private void patchJump(int at) {
+        code[at] = size - (at + 1);
+    }
+
+    private int constant(Object value) {
+        // name Tokens are kept one per occurrence, for the line of their errors, and so are the caches of the globals
+        boolean shared = !(value instanceof Token || value instanceof GlobalCache);
+        Integer index = shared ? constantIndex.get(value) : null;
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            if (shared) constantIndex.put(value, index);
+        }
+        return index;
+    }
+
+    private void push() {
+        stackDepth++;
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+
+    private void pop() {
+        stackDepth--;
+    }
+}
@@ -0,0 +1,70 @@
+package com.jlox;
+
+// A compiled program for the VM: its code, its constant table and its line table
+// The code is a flat array of instructions, an opcode followed by its operands (if any), each taking one int.
+// lines[i] is the source line of the instruction at code[i], for the runtime errors
+final class Chunk {
+    /* the opcodes, with their operands and what they do to the stack */
+
+    // constant index: push the constant
+    static final int CONSTANT = 0;
+    static final int NIL = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int POP = 4;
+
+    // constant index of the GlobalCache of the name (of the name Token for DEFINE_GLOBAL): push / define with the popped
+    // value / assign the top of the stack
+    static final int GET_GLOBAL = 5;
+    static final int DEFINE_GLOBAL = 6;
+    static final int SET_GLOBAL = 7;
+
+    // slot: push / define with the popped value / assign the top of the stack
+    static final int GET_LOCAL = 8;
+    static final int DEFINE_LOCAL = 9;
+    static final int SET_LOCAL = 10;
+
+    // pop the right operand, then the left one, push the result
+    static final int ADD = 11;
+    static final int SUBTRACT = 12;
+    static final int MULTIPLY = 13;
+    static final int DIVIDE = 14;
+    static final int GREATER = 15;
+    static final int GREATER_EQUALS = 16;
+    static final int LESSER = 17;
+    static final int LESSER_EQUALS = 18;
+    static final int EQUALS_EQUALS = 19;
+    static final int BANG_EQUALS = 20;
+
+    // replace the top of the stack
+    static final int NEGATE = 21;
+    static final int NOT = 22;
+
+    static final int PRINT = 23;
+
+    // offset: jump / pop and jump when falsy / pop and jump when false, for the ternary which requires a boolean
+    static final int JUMP = 24;
+    static final int JUMP_IF_FALSE = 25;
+    static final int JUMP_IF_NOT_TRUE = 26;
+
+    // an expression the parser could not make sense of, the tree walker fails on it with a NullPointerException
+    static final int MISSING = 27;
+
+    static final int RETURN = 28;
+
+    final int[] code;
+    final int[] lines;
+    final Object[] constants;
+
+    // the number of local variable slots and the deepest the stack gets
+    final int localCount;
+    final int maxStack;
+
+    Chunk (int[] _code, int[] _lines, Object[] _constants, int _localCount, int _maxStack) {
+        this.code = _code;
+        this.lines = _lines;
+        this.constants = _constants;
+        this.localCount = _localCount;
+        this.maxStack = _maxStack;
+    }
+}
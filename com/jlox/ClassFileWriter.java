@@ -0,0 +1,235 @@
+package com.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// A minimal writer of JVM class files, just what the JitCompiler needs: a constant pool and static methods with code.
+// The class files are version 49 (Java 5), the last version the JVM verifies by inferring the types of the locals and
+// the stack itself, so the writer never has to compute a StackMapTable for the code it is given
+final class ClassFileWriter {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int VERSION = 49;
+
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    /* constant pool tags */
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+
+    // the index of every entry written so far, by its tag and contents
+    private final Map<String, Integer> entries = new HashMap<>();
+
+    // entries are numbered from 1, and a double takes up two numbers
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount = 0;
+
+    private final int thisClass;
+    private final int superClass;
+
+    ClassFileWriter(String _name) {
+        this.thisClass = classRef(_name);
+        this.superClass = classRef("java/lang/Object");
+    }
+
+    /**
+     * The number of constant pool entries so far, which may not exceed 65535
+     */
+    int constantCount() {
+        return poolCount;
+    }
+
+    int utf8(String value) {
+        Integer index = entries.get("U" + value);
+        if (index != null) return index;
+
+        try {
+            pool.writeByte(UTF8);
+            pool.writeUTF(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return add("U" + value, 1);
+    }
+
+    int classRef(String name) {
+        Integer index = entries.get("C" + name);
+        if (index != null) return index;
+
+        int nameIndex = utf8(name);
+        write(CLASS);
+        writeShort(nameIndex);
+        return add("C" + name, 1);
+    }
+
+    int integer(int value) {
+        Integer index = entries.get("I" + value);
+        if (index != null) return index;
+
+        write(INTEGER);
+        writeInt(value);
+        return add("I" + value, 1);
+    }
+
+    // keyed by the bits of the value, so that 0 and -0 (and the NaNs) stay apart
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        Integer index = entries.get("D" + bits);
+        if (index != null) return index;
+
+        write(DOUBLE);
+        writeInt((int)(bits >>> 32));
+        writeInt((int)bits);
+        return add("D" + bits, 2);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        String key = "F" + owner + '.' + name + descriptor;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        int classIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        write(FIELD_REF);
+        writeShort(classIndex);
+        writeShort(nameAndType);
+        return add(key, 1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + '.' + name + descriptor;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        int classIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        write(METHOD_REF);
+        writeShort(classIndex);
+        writeShort(nameAndType);
+        return add(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + ':' + descriptor;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        write(NAME_AND_TYPE);
+        writeShort(nameIndex);
+        writeShort(descriptorIndex);
+        return add(key, 1);
+    }
+
+    private int add(String key, int size) {
+        int index = poolCount;
+        entries.put(key, index);
+        poolCount += size;
+        return index;
+    }
+
+    /**
+     * Adds a static method with the first length bytes of code as its body
+     */
+    void method(String name, String descriptor, byte[] code, int length, int maxStack, int maxLocals) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeAttribute = utf8("Code");
+
+        try {
+            methods.writeShort(ACC_STATIC);
+            methods.writeShort(nameIndex);
+            methods.writeShort(descriptorIndex);
+
+            // one attribute, the Code, with no exception table and no attributes of its own
+            methods.writeShort(1);
+            methods.writeShort(codeAttribute);
+            methods.writeInt(12 + length);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(length);
+            methods.write(code, 0, length);
+            methods.writeShort(0);
+            methods.writeShort(0);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(poolBytes.size() + methodBytes.size() + 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+
+            // no interfaces and no fields
+            out.writeShort(0);
+            out.writeShort(0);
+
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+
+            // no attributes
+            out.writeShort(0);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(int value) {
+        try {
+            pool.writeByte(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeShort(int value) {
+        try {
+            pool.writeShort(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeInt(int value) {
+        try {
+            pool.writeInt(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
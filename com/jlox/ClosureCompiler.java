@@ -0,0 +1,602 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jlox.Expr.Assignment;
+import com.jlox.Expr.Variable;
+import com.jlox.Stmt.BlockStmt;
+import com.jlox.Stmt.IfStmt;
+import com.jlox.Stmt.VarDecStmt;
+
+// An engine between the tree walker and the VM (jlox --closures): the statements are converted once into a tree of
+// lambdas, each bound to its operands and to what its operator does, and then the lambdas run.
+// Where the Interpreter switches on the operator token of every Binary and Unary it evaluates, here the switch runs
+// once at conversion time and picks the lambda for that operator, so each one only does the work of its operator.
+// The expressions known to be numbers become NumberCode, which evaluates to an unboxed double: the Analysis of the
+// JitCompiler finds the variables that only ever hold numbers, and those live in a double[] next to the Object[] of
+// the other locals, so arithmetic on them boxes nothing. The rest stays Code, evaluating to an Object.
+// Values, output and errors are the ones of the Interpreter. The locals of all the blocks share the two arrays, with
+// the slots laid out as in BytecodeCompiler, each variable using its slot in one of them
+public class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Code>, Stmt.Visitor<ClosureCompiler.Action> {
+    // a converted expression, evaluating to its value
+    interface Code {
+        Object run(Object[] locals, double[] numbers);
+
+        // this code as NumberCode, null when it is not one: testing the lambdas with instanceof NumberCode instead
+        // made the conversion several times slower, the JVM caches only one of the interfaces of a class
+        default NumberCode asNumber() {
+            return null;
+        }
+    }
+
+    // a converted expression that is known to be a number, it is boxed only when it is run as Code
+    interface NumberCode extends Code {
+        double number(Object[] locals, double[] numbers);
+
+        @Override
+        default Object run(Object[] locals, double[] numbers) {
+            return number(locals, numbers);
+        }
+
+        @Override
+        default NumberCode asNumber() {
+            return this;
+        }
+    }
+
+    // a converted statement
+    interface Action {
+        void run(Object[] locals, double[] numbers);
+    }
+
+    // kept across interpret() calls like the Interpreter's globals, for the statement at a time modes
+    private final Environment globals;
+    private final Resolver resolver = new Resolver();
+
+    // what print statements write to
+    private final OutputSink out;
+
+    // the variables of the top level statement being converted
+    private JitCompiler.Analysis analysis;
+
+    // the first slot of every enclosing block, innermost last
+    private final List<Integer> blockBases = new ArrayList<>();
+    private int localCount = 0;
+
+    // the first slot that none of the enclosing blocks uses
+    private int nextSlot = 0;
+
+    public ClosureCompiler() {
+        this(new OutputSink(System.out, OutputSink.FlushPolicy.WHEN_FULL));
+    }
+
+    ClosureCompiler(OutputSink _out) {
+        this(new Environment(), _out);
+    }
+
+    // sharing the globals and the output of another engine, see JitCompiler
+    ClosureCompiler(Environment _globals, OutputSink _out) {
+        this.globals = _globals;
+        this.out = _out;
+    }
+
+    public void interpret(List<Stmt> statements) {
+        Action program = compile(statements);
+        try {
+            run(program);
+        }
+        catch (RuntimeError error) {
+            // what the script printed comes before the error
+            out.flush();
+            Jlox.runtimeError(error);
+        }
+        finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Converts top level statements, running the Resolver on them first
+     */
+    Action compile(List<Stmt> statements) {
+        List<Action> actions = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            resolver.resolveTopLevel(statement);
+            // every statement, an if statement can hold a block with variables as well
+            analysis = new JitCompiler.Analysis();
+            analysis.analyse(statement);
+            actions.add(statement(statement));
+        }
+        analysis = null;
+        return sequence(actions);
+    }
+
+    void run(Action program) {
+        program.run(new Object[localCount], new double[localCount]);
+    }
+
+    private Action statement(Stmt statement) {
+        return statement.accept(this);
+    }
+
+    private Code expression(Expr expression) {
+        if (expression == null) {
+            // an expression the parser could not make sense of, the tree walker fails on it when it gets there
+            return (locals, numbers) -> {
+                throw new NullPointerException("missing expression");
+            };
+        }
+        return expression.accept(this);
+    }
+
+    private static Action sequence(List<Action> actions) {
+        Action[] body = actions.toArray(new Action[0]);
+        return (locals, numbers) -> {
+            for (Action action : body) {
+                action.run(locals, numbers);
+            }
+        };
+    }
+
+    // the block variable the depth and slot of the Resolver stand for, and its slot in the arrays
+    private JitCompiler.Local local(int depth, int slot) {
+        return analysis.local(depth, slot);
+    }
+
+    private int slot(int depth, int slot) {
+        return blockBases.get(blockBases.size() - 1 - depth) + slot;
+    }
+
+    // the code of a definition of a double variable, which the Analysis only allows for numbers
+    private static NumberCode definition(Code code) {
+        NumberCode number = code.asNumber();
+        if (number != null) return number;
+        throw new IllegalStateException("a double variable defined with an expression that is not a number");
+    }
+
+    @Override
+    public Action visitExprStmt(Stmt.ExprStmt expressionStatement) {
+        Code expression = expression(expressionStatement.expression);
+        NumberCode number = expression.asNumber();
+        if (number != null) return (locals, numbers) -> number.number(locals, numbers);
+        return (locals, numbers) -> expression.run(locals, numbers);
+    }
+
+    @Override
+    public Action visitPrintStmt(Stmt.PrintStmt printStatement) {
+        Code expression = expression(printStatement.expression);
+        NumberCode number = expression.asNumber();
+        if (number != null) {
+            return (locals, numbers) -> out.printLine(number.number(locals, numbers));
+        }
+        return (locals, numbers) -> out.printLine(expression.run(locals, numbers));
+    }
+
+    @Override
+    public Action visitVarDecStmt(VarDecStmt varDecStatement) {
+        Code initialiser = varDecStatement.initialiser != null
+            ? expression(varDecStatement.initialiser)
+            : (locals, numbers) -> null;
+
+        if (varDecStatement.slot == Resolver.GLOBAL) {
+            Token name = varDecStatement.name;
+            return (locals, numbers) -> globals.define(name, initialiser.run(locals, numbers));
+        }
+
+        int slot = slot(0, varDecStatement.slot);
+        if (local(0, varDecStatement.slot).isDouble) {
+            NumberCode number = definition(initialiser);
+            return (locals, numbers) -> numbers[slot] = number.number(locals, numbers);
+        }
+        return (locals, numbers) -> locals[slot] = initialiser.run(locals, numbers);
+    }
+
+    @Override
+    public Action visitBlockStmt(BlockStmt blockStatement) {
+        // a block without variables has no frame to count, see Resolver
+        boolean framed = blockStatement.slotCount > 0;
+        int base = nextSlot;
+        if (framed) {
+            blockBases.add(base);
+            analysis.scopes.add(analysis.blockLocals.get(blockStatement));
+        }
+        nextSlot = base + blockStatement.slotCount;
+        localCount = Math.max(localCount, nextSlot);
+
+        List<Action> actions = new ArrayList<>(blockStatement.blockStatementList.size());
+        for (Stmt statement : blockStatement.blockStatementList) {
+            actions.add(statement(statement));
+        }
+
+        if (framed) {
+            blockBases.remove(blockBases.size() - 1);
+            analysis.scopes.remove(analysis.scopes.size() - 1);
+        }
+        nextSlot = base;
+        return sequence(actions);
+    }
+
+    @Override
+    public Action visitIfStmt(IfStmt ifStatement) {
+        Code conditional = expression(ifStatement.conditional);
+        Action thenStatement = statement(ifStatement.thenStatement);
+        Action elseStatement = ifStatement.elseStatemeStmt != null ? statement(ifStatement.elseStatemeStmt) : null;
+
+        NumberCode number = conditional.asNumber();
+        if (number != null) {
+            // a number is always truthy, only its side effects count
+            return (locals, numbers) -> {
+                number.number(locals, numbers);
+                thenStatement.run(locals, numbers);
+            };
+        }
+
+        if (elseStatement == null) {
+            return (locals, numbers) -> {
+                if (Interpreter.isTruthy(conditional.run(locals, numbers))) thenStatement.run(locals, numbers);
+            };
+        }
+
+        return (locals, numbers) -> {
+            if (Interpreter.isTruthy(conditional.run(locals, numbers))) thenStatement.run(locals, numbers);
+            else elseStatement.run(locals, numbers);
+        };
+    }
+
+    @Override
+    public Code visitBinary(Expr.Binary expression) {
+        Code left = expression(expression.left);
+        Code right = expression(expression.right);
+        Token operator = expression.operator;
+
+        NumberCode leftNumber = left.asNumber();
+        NumberCode rightNumber = right.asNumber();
+        if (leftNumber != null && rightNumber != null) return numbers(leftNumber, rightNumber, operator);
+        if (leftNumber != null) return numberAndObject(leftNumber, right, operator);
+        if (rightNumber != null) return objectAndNumber(left, rightNumber, operator);
+
+        // the left operand is always evaluated before the right one
+        switch (operator.tokenType) {
+            case TokenType.PLUS:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    Object b = right.run(locals, numbers);
+                    if (a instanceof Double x && b instanceof Double y) return x + y;
+                    if (a instanceof CharSequence x && b instanceof CharSequence y) return Rope.concat(x, y);
+                    throw new RuntimeError(operator, "Operands must be two strings or two numbers");
+                };
+            case TokenType.MINUS:
+                return (NumberCode)(locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    Object b = right.run(locals, numbers);
+                    if (a instanceof Double x && b instanceof Double y) return x - y;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+            case TokenType.STAR:
+                return (NumberCode)(locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    Object b = right.run(locals, numbers);
+                    if (a instanceof Double x && b instanceof Double y) return x * y;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+            case TokenType.SLASH:
+                return (NumberCode)(locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    Object b = right.run(locals, numbers);
+                    if (a instanceof Double x && b instanceof Double y) return x / y;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+
+            // like the Interpreter, comparisons just cast their operands, once both are evaluated
+            case TokenType.GREATER:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    Object b = right.run(locals, numbers);
+                    return (double)a > (double)b;
+                };
+            case TokenType.GREATER_EQUALS:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    Object b = right.run(locals, numbers);
+                    return (double)a >= (double)b;
+                };
+            case TokenType.LESSER:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    Object b = right.run(locals, numbers);
+                    return (double)a < (double)b;
+                };
+            case TokenType.LESSER_EQUALS:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    Object b = right.run(locals, numbers);
+                    return (double)a <= (double)b;
+                };
+            case TokenType.EQUALS_EQUALS:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    return Interpreter.isEqual(a, right.run(locals, numbers));
+                };
+            case TokenType.BANG_EQUALS:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    return !Interpreter.isEqual(a, right.run(locals, numbers));
+                };
+            default:
+                return (locals, numbers) -> {
+                    left.run(locals, numbers);
+                    right.run(locals, numbers);
+                    return null;
+                };
+        }
+    }
+
+    // two numbers, nothing to check
+    private static Code numbers(NumberCode left, NumberCode right, Token operator) {
+        switch (operator.tokenType) {
+            case TokenType.PLUS:
+                return (NumberCode)(locals, numbers) -> left.number(locals, numbers) + right.number(locals, numbers);
+            case TokenType.MINUS:
+                return (NumberCode)(locals, numbers) -> left.number(locals, numbers) - right.number(locals, numbers);
+            case TokenType.STAR:
+                return (NumberCode)(locals, numbers) -> left.number(locals, numbers) * right.number(locals, numbers);
+            case TokenType.SLASH:
+                return (NumberCode)(locals, numbers) -> left.number(locals, numbers) / right.number(locals, numbers);
+            case TokenType.GREATER:
+                return (locals, numbers) -> left.number(locals, numbers) > right.number(locals, numbers);
+            case TokenType.GREATER_EQUALS:
+                return (locals, numbers) -> left.number(locals, numbers) >= right.number(locals, numbers);
+            case TokenType.LESSER:
+                return (locals, numbers) -> left.number(locals, numbers) < right.number(locals, numbers);
+            case TokenType.LESSER_EQUALS:
+                return (locals, numbers) -> left.number(locals, numbers) <= right.number(locals, numbers);
+
+            // Double.compare() tells numbers apart like Double.equals() in isEqual() does
+            case TokenType.EQUALS_EQUALS:
+                return (locals, numbers) -> {
+                    double a = left.number(locals, numbers);
+                    return Double.compare(a, right.number(locals, numbers)) == 0;
+                };
+            case TokenType.BANG_EQUALS:
+                return (locals, numbers) -> {
+                    double a = left.number(locals, numbers);
+                    return Double.compare(a, right.number(locals, numbers)) != 0;
+                };
+            default:
+                return (locals, numbers) -> {
+                    left.number(locals, numbers);
+                    right.number(locals, numbers);
+                    return null;
+                };
+        }
+    }
+
+    // a number and a value of any kind: only the value is checked, or cast by the comparisons
+    private static Code numberAndObject(NumberCode left, Code right, Token operator) {
+        switch (operator.tokenType) {
+            case TokenType.PLUS:
+                // a number added to anything else is a number or an error
+                return (NumberCode)(locals, numbers) -> {
+                    double a = left.number(locals, numbers);
+                    if (right.run(locals, numbers) instanceof Double y) return a + y;
+                    throw new RuntimeError(operator, "Operands must be two strings or two numbers");
+                };
+            case TokenType.MINUS:
+                return (NumberCode)(locals, numbers) -> {
+                    double a = left.number(locals, numbers);
+                    if (right.run(locals, numbers) instanceof Double y) return a - y;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+            case TokenType.STAR:
+                return (NumberCode)(locals, numbers) -> {
+                    double a = left.number(locals, numbers);
+                    if (right.run(locals, numbers) instanceof Double y) return a * y;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+            case TokenType.SLASH:
+                return (NumberCode)(locals, numbers) -> {
+                    double a = left.number(locals, numbers);
+                    if (right.run(locals, numbers) instanceof Double y) return a / y;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+            case TokenType.GREATER:
+                return (locals, numbers) -> left.number(locals, numbers) > (double)right.run(locals, numbers);
+            case TokenType.GREATER_EQUALS:
+                return (locals, numbers) -> left.number(locals, numbers) >= (double)right.run(locals, numbers);
+            case TokenType.LESSER:
+                return (locals, numbers) -> left.number(locals, numbers) < (double)right.run(locals, numbers);
+            case TokenType.LESSER_EQUALS:
+                return (locals, numbers) -> left.number(locals, numbers) <= (double)right.run(locals, numbers);
+            default:
+                return objects(left, right, operator);
+        }
+    }
+
+    private static Code objectAndNumber(Code left, NumberCode right, Token operator) {
+        switch (operator.tokenType) {
+            case TokenType.PLUS:
+                return (NumberCode)(locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    double b = right.number(locals, numbers);
+                    if (a instanceof Double x) return x + b;
+                    throw new RuntimeError(operator, "Operands must be two strings or two numbers");
+                };
+            case TokenType.MINUS:
+                return (NumberCode)(locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    double b = right.number(locals, numbers);
+                    if (a instanceof Double x) return x - b;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+            case TokenType.STAR:
+                return (NumberCode)(locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    double b = right.number(locals, numbers);
+                    if (a instanceof Double x) return x * b;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+            case TokenType.SLASH:
+                return (NumberCode)(locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    double b = right.number(locals, numbers);
+                    if (a instanceof Double x) return x / b;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+            case TokenType.GREATER:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    double b = right.number(locals, numbers);
+                    return (double)a > b;
+                };
+            case TokenType.GREATER_EQUALS:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    double b = right.number(locals, numbers);
+                    return (double)a >= b;
+                };
+            case TokenType.LESSER:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    double b = right.number(locals, numbers);
+                    return (double)a < b;
+                };
+            case TokenType.LESSER_EQUALS:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    double b = right.number(locals, numbers);
+                    return (double)a <= b;
+                };
+            default:
+                return objects(left, right, operator);
+        }
+    }
+
+    // the operators that compare any values, the number is boxed
+    private static Code objects(Code left, Code right, Token operator) {
+        switch (operator.tokenType) {
+            case TokenType.EQUALS_EQUALS:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    return Interpreter.isEqual(a, right.run(locals, numbers));
+                };
+            case TokenType.BANG_EQUALS:
+                return (locals, numbers) -> {
+                    Object a = left.run(locals, numbers);
+                    return !Interpreter.isEqual(a, right.run(locals, numbers));
+                };
+            default:
+                return (locals, numbers) -> {
+                    left.run(locals, numbers);
+                    right.run(locals, numbers);
+                    return null;
+                };
+        }
+    }
+
+    @Override
+    public Code visitUnary(Expr.Unary expression) {
+        Code operand = expression(expression.expression);
+        Token operator = expression.operator;
+
+        switch (operator.tokenType) {
+            case TokenType.MINUS:
+                NumberCode number = operand.asNumber();
+                if (number != null) {
+                    return (NumberCode)(locals, numbers) -> -number.number(locals, numbers);
+                }
+                return (NumberCode)(locals, numbers) -> {
+                    if (operand.run(locals, numbers) instanceof Double x) return -x;
+                    throw new RuntimeError(operator, "Operand must be a number");
+                };
+            case TokenType.BANG:
+                return (locals, numbers) -> !Interpreter.isTruthy(operand.run(locals, numbers));
+            default:
+                return (locals, numbers) -> {
+                    operand.run(locals, numbers);
+                    return null;
+                };
+        }
+    }
+
+    @Override
+    public Code visitGrouping(Expr.Grouping expression) {
+        // nothing to do at run time
+        return expression(expression.expression);
+    }
+
+    @Override
+    public Code visitLiteral(Expr.Literal expression) {
+        Object value = expression.value;
+        if (value instanceof Double number) {
+            double unboxed = number;
+            return new NumberCode() {
+                @Override
+                public double number(Object[] locals, double[] numbers) {
+                    return unboxed;
+                }
+
+                // the Double of the literal, as the Interpreter gives it
+                @Override
+                public Object run(Object[] locals, double[] numbers) {
+                    return value;
+                }
+            };
+        }
+        return (locals, numbers) -> value;
+    }
+
+    @Override
+    public Code visitTernary(Expr.Ternary expression) {
+        Code conditional = expression(expression.conditional);
+        Code trueBranch = expression(expression.trueBranch);
+        Code falseBranch = expression(expression.falseBranch);
+
+        // the condition has to be a boolean, as in the Interpreter
+        NumberCode x = trueBranch.asNumber();
+        NumberCode y = falseBranch.asNumber();
+        if (x != null && y != null) {
+            return (NumberCode)(locals, numbers) ->
+                (boolean)conditional.run(locals, numbers) ? x.number(locals, numbers) : y.number(locals, numbers);
+        }
+        return (locals, numbers) -> (boolean)conditional.run(locals, numbers)
+            ? trueBranch.run(locals, numbers)
+            : falseBranch.run(locals, numbers);
+    }
+
+    @Override
+    public Code visitVariable(Variable expression) {
+        if (expression.depth == Resolver.GLOBAL) {
+            // a cache of its own, the nodes may be run by another engine as well
+            GlobalCache global = new GlobalCache(expression.name);
+            return (locals, numbers) -> global.get(globals);
+        }
+
+        int slot = slot(expression.depth, expression.slot);
+        if (local(expression.depth, expression.slot).isDouble) {
+            return (NumberCode)(locals, numbers) -> numbers[slot];
+        }
+        return (locals, numbers) -> locals[slot];
+    }
+
+    @Override
+    public Code visitAssignment(Assignment assignment) {
+        Code value = expression(assignment.expression);
+
+        if (assignment.depth == Resolver.GLOBAL) {
+            GlobalCache global = new GlobalCache(assignment.name);
+            return (locals, numbers) -> {
+                Object result = value.run(locals, numbers);
+                global.assign(globals, result);
+                return result;
+            };
+        }
+
+        int slot = slot(assignment.depth, assignment.slot);
+        if (local(assignment.depth, assignment.slot).isDouble) {
+            NumberCode number = definition(value);
+            return (NumberCode)(locals, numbers) -> numbers[slot] = number.number(locals, numbers);
+        }
+        return (locals, numbers) -> locals[slot] = value.run(locals, numbers);
+    }
+}
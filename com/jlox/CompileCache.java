@@ -0,0 +1,203 @@
+package com.jlox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+// The on-disk cache of parsed scripts, script.lox is cached as the FlatAst of its statements in script.loxc
+// A .loxc file is laid out as:
+//
+//      int     MAGIC, VERSION
+//      long    length of the script in bytes
+//      int     CRC32C of the script
+//      int     constant count, then every constant as a tag byte followed by its value
+//      int     root count, then the roots
+//      int     node count, then the nodes
+//      int     CRC32C of everything before it
+//
+// The nodes are used straight out of the mapped file, the statements are decoded from them when the cache is loaded.
+// The lines of the tokens are part of the nodes.
+// A cache whose length or checksum does not match the script, or that is not a .loxc file of this VERSION,
+// is stale and gets rebuilt, and so is a cache that does not match its own checksum or does not decode, e.g. a
+// damaged file
+final class CompileCache {
+    private static final int MAGIC = 0x4C4F5843;    // "LOXC"
+
+    // bump when the layout of the file, of the FlatAst nodes or the order of TokenType changes
+    private static final int VERSION = 2;
+
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+
+    private final Path cache;
+    private final long sourceLength;
+    private final int sourceChecksum;
+
+    CompileCache (Path _script) throws IOException {
+        String name = _script.getFileName().toString();
+        this.cache = _script.resolveSibling(name.endsWith(".lox") ? name + "c" : name + ".loxc");
+
+        try (FileChannel channel = FileChannel.open(_script, StandardOpenOption.READ)) {
+            this.sourceLength = channel.size();
+
+            CRC32C checksum = new CRC32C();
+            checksum.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, sourceLength));
+            this.sourceChecksum = (int)checksum.getValue();
+        }
+    }
+
+    /**
+     * @return the statements of the cached program, or null when there is no usable cache for this version of the script
+     */
+    List<Stmt> load() {
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int checked = bytes.limit() - Integer.BYTES;
+            if (checked < 0) return null;
+            CRC32C checksum = new CRC32C();
+            checksum.update(bytes.slice(0, checked));
+            if (bytes.getInt(checked) != (int)checksum.getValue()) return null;
+            bytes.limit(checked);
+
+            if (bytes.getInt() != MAGIC || bytes.getInt() != VERSION
+                    || bytes.getLong() != sourceLength || bytes.getInt() != sourceChecksum) {
+                return null;
+            }
+
+            Object[] constants = new Object[bytes.getInt()];
+            for (int i = 0; i < constants.length; i++) {
+                constants[i] = constant(bytes);
+            }
+
+            int[] roots = new int[bytes.getInt()];
+            for (int i = 0; i < roots.length; i++) {
+                roots[i] = bytes.getInt();
+            }
+
+            int nodeCount = bytes.getInt();
+            if (nodeCount < 0 || nodeCount > bytes.remaining() / Integer.BYTES) return null;
+            IntBuffer nodes = bytes.slice(bytes.position(), nodeCount * Integer.BYTES).asIntBuffer();
+
+            // all of them now, so that nodes that do not decode are a stale cache and not a failure halfway through the run
+            FlatAst program = new FlatAst(nodes, constants, roots);
+            List<Stmt> statements = new ArrayList<>(roots.length);
+            for (int root : roots) {
+                statements.add(program.statement(root));
+            }
+            return statements;
+        }
+        catch (IOException e) {
+            // usually no cache yet
+            return null;
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException
+                | IllegalStateException | IndexOutOfBoundsException | ClassCastException e) {
+            // a truncated or otherwise broken file
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cache of the script, a cache that can not be written is skipped
+     */
+    void store(FlatAst program) {
+        Path temporary = null;
+        try {
+            // written next to the cache and moved over it, so that a run never reads a half written file
+            temporary = Files.createTempFile(cache.toAbsolutePath().getParent(), cache.getFileName().toString(), ".tmp");
+            CRC32C checksum = new CRC32C();
+            try (CheckedOutputStream file = new CheckedOutputStream(Files.newOutputStream(temporary), checksum);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(sourceLength);
+                out.writeInt(sourceChecksum);
+
+                out.writeInt(program.constants.length);
+                for (Object constant : program.constants) {
+                    writeConstant(out, constant);
+                }
+
+                out.writeInt(program.roots.length);
+                for (int root : program.roots) {
+                    out.writeInt(root);
+                }
+
+                IntBuffer nodes = program.nodes;
+                out.writeInt(nodes.limit());
+                for (int i = 0; i < nodes.limit(); i++) {
+                    out.writeInt(nodes.get(i));
+                }
+
+                // checksum is up to date once everything before it went through the buffer
+                out.flush();
+                out.writeInt((int)checksum.getValue());
+            }
+            Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            // e.g. a read only directory, the script just gets parsed again next time
+            try {
+                if (temporary != null) Files.deleteIfExists(temporary);
+            }
+            catch (IOException ignored) {}
+        }
+    }
+
+    private static Object constant(ByteBuffer bytes) {
+        switch (bytes.get()) {
+            case NIL:
+                return null;
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case NUMBER:
+                return bytes.getDouble();
+            case STRING:
+                int length = bytes.getInt();
+                if (length > bytes.remaining()) throw new IllegalArgumentException("string past the end of the file");
+                byte[] utf8 = new byte[length];
+                bytes.get(utf8);
+                return new String(utf8, StandardCharsets.UTF_8);
+            default:
+                throw new IllegalArgumentException("unknown constant tag");
+        }
+    }
+
+    private static void writeConstant(DataOutputStream out, Object constant) throws IOException {
+        if (constant == null) {
+            out.writeByte(NIL);
+        }
+        else if (constant instanceof Boolean) {
+            out.writeByte((boolean)constant ? TRUE : FALSE);
+        }
+        else if (constant instanceof Double) {
+            out.writeByte(NUMBER);
+            out.writeDouble((double)constant);
+        }
+        else {
+            byte[] utf8 = ((String)constant).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+}
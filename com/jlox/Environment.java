@@ -1,46 +1,143 @@
 package com.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// The global environment keeps its variables by name, since they are only known as the top level statements run: by
+// the symbol id of the name (Token.symbol), in a SymbolMap, so no String is hashed or compared.
+// Each one in a Global cell, which it keeps for as long as the environment lives, so that the engines can hold on to
+// the cell instead of looking the name up every time, see GlobalCache.
+// Every block gets a frame instead: an array with a slot for each variable the block declares, see Resolver.
+// A slot tagged NUMBER holds a number, unboxed in the numbers array of the frame, so that the Interpreter can keep the
+// numbers of its locals without allocating a Double for each value it stores
 public class Environment {
-    private Map<String, Object> values = new HashMap<>();
+    private static final Object NUMBER = new Object();
+
+    // the value of a global variable
+    static final class Global {
+        Object value;
+    }
+
+    // tells the global environments apart for GlobalCache, 0 for a frame
+    private static int lastId = 0;
+    final int id;
+
+    // the index of the cell of each global in cells
+    private SymbolMap indexes;
+    private Global[] cells;
+    private Object[] slots;
+    // allocated with the first number stored in the frame
+    private double[] numbers;
     private Environment enclosing;
 
     Environment () {
+        this.indexes = new SymbolMap();
+        this.cells = new Global[8];
         this.enclosing = null;
+        this.id = ++lastId;
     }
 
-    Environment (Environment _enclosing) {
+    Environment (Environment _enclosing, int slotCount) {
+        this.slots = new Object[slotCount];
         this.enclosing = _enclosing;
+        this.id = 0;
     }
 
 
     public void define(Token name, Object value) {
-        values.put(name.lexeme, value);
+        // defining the variable again keeps its cell
+        Global global = global(name);
+        if (global == null) {
+            int index = indexes.size();
+            if (index == cells.length) cells = Arrays.copyOf(cells, index * 2);
+            global = new Global();
+            cells[index] = global;
+            indexes.put(name.symbol, index);
+        }
+        global.value = value;
     }
 
     public Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-        else if (this.enclosing != null) {
-            return this.enclosing.get(name);
+        Global global = global(name);
+        if (global != null) {
+            return global.value;
         }
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'." );
     }
 
     public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            this.values.put(name.lexeme, value);
-            return;
-        }
-        else if (enclosing != null) {
-            this.enclosing.assign(name, value);
+        Global global = global(name);
+        if (global != null) {
+            global.value = value;
             return;
         }
 
         throw new RuntimeError(name, "Undefined variable " + name.lexeme);
     }
+
+    // the cell of the global, null while it is not defined
+    Global global(Token name) {
+        int index = indexes.get(name.symbol);
+        return index != SymbolMap.MISSING ? cells[index] : null;
+    }
+
+    /* the variables of blocks, by the depth and slot the Resolver gave them */
+    void defineAt(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    void defineNumberAt(int slot, double value) {
+        if (numbers == null) numbers = new double[slots.length];
+        slots[slot] = NUMBER;
+        numbers[slot] = value;
+    }
+
+    // boxes a number, use holdsNumber() and numberAt() to read one without that
+    Object getAt(int depth, int slot) {
+        Environment frame = ancestor(depth);
+        Object value = frame.slots[slot];
+        return value == NUMBER ? (Object)frame.numbers[slot] : value;
+    }
+
+    void assignAt(int depth, int slot, Object value) {
+        ancestor(depth).slots[slot] = value;
+    }
+
+    void assignNumberAt(int depth, int slot, double value) {
+        ancestor(depth).defineNumberAt(slot, value);
+    }
+
+    boolean holdsNumber(int slot) {
+        return slots[slot] == NUMBER;
+    }
+
+    double numberAt(int slot) {
+        return numbers[slot];
+    }
+
+    // the Interpreter reuses the frames of blocks that are done, keeping a free list of them linked through enclosing
+    int slotCount() {
+        return slots.length;
+    }
+
+    Environment enclosing() {
+        return enclosing;
+    }
+
+    void link(Environment _enclosing) {
+        this.enclosing = _enclosing;
+    }
+
+    // drops the values, so a frame on the free list keeps nothing alive
+    void clear() {
+        Arrays.fill(slots, null);
+    }
+
+    Environment ancestor(int depth) {
+        Environment environment = this;
+        for (int i = 0; i < depth; i++) {
+            environment = environment.enclosing;
+        }
+        return environment;
+    }
 }
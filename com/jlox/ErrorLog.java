@@ -0,0 +1,80 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects the errors of a Lexer or Parser that must not report them straight away through Jlox.error,
+// e.g. because its work may be thrown away and redone, or because it runs on a worker thread.
+// report() hands them over to Jlox.error in the order they were found
+class ErrorLog {
+    private static class Entry {
+        Entry(Token _token, int _line, int _offset, String _message) {
+            this.token = _token;
+            this.line = _line;
+            this.offset = _offset;
+            this.message = _message;
+        }
+
+        final Token token;   // null for the errors of the lexer
+        final int line;
+        final int offset;    // offset in the source of the errors of the lexer
+        final String message;
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * An error of the lexer, which only knows where it was in the source
+     */
+    void error(int line, int offset, String message) {
+        entries.add(new Entry(null, line, offset, message));
+    }
+
+    /**
+     * An error of the parser at token
+     */
+    void error(Token token, String message) {
+        entries.add(new Entry(token, token.line(), -1, message));
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Moves the errors of the lexer that were found in the source range [from, to) into a new log
+     */
+    ErrorLog lexerErrors(int from, int to) {
+        ErrorLog log = new ErrorLog();
+        for (Entry entry : entries) {
+            if (entry.token == null && entry.offset >= from && entry.offset < to) {
+                log.entries.add(entry);
+            }
+        }
+        entries.removeAll(log.entries);
+        return log;
+    }
+
+    void report() {
+        report(0);
+    }
+
+    /**
+     * Reports the collected errors, adding lineOffset to the lines of the lexer errors. This is for lexers that were
+     * started in the middle of a source without knowing the line they started at
+     */
+    void report(int lineOffset) {
+        for (Entry entry : entries) {
+            if (entry.token == null) {
+                Jlox.error(entry.line + lineOffset, entry.message);
+            }
+            else {
+                Jlox.error(entry.token, entry.message);
+            }
+        }
+    }
+}
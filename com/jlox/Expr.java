@@ -1,5 +1,7 @@
-// The child classes needs to be static so that they can be instantiated without the reference of the outer class 'Expr'
 package com.jlox;
+
+// Generated by com.jlox.tools.ASTGenerator, change the specs there and run it again
+// The child classes needs to be static so that they can be instantiated without the reference of the outer class 'Expr'
 public abstract class Expr {
    // Below interface is implemented by the Visitor classes
    public interface Visitor<T> {
@@ -9,28 +11,32 @@ public abstract class Expr {
       T visitLiteral(Literal expression);
       T visitTernary(Ternary expression);
       T visitVariable(Variable expression);
-      T visitAssignment(Assignment assignment);
+      T visitAssignment(Assignment expression);
    }
 
    // Below method is an abstract one, so all the sub classes that extends this base class, needs to define its body
-   // and this will select the proper visitor method based on the 'Expr' object it is called from. 
-   abstract<R> R accept(Visitor<R> visitor);
+   // and this will select the proper visitor method based on the 'Expr' object it is called from.
+   abstract <R> R accept(Visitor<R> visitor);
 
    static class Binary extends Expr {
       @Override
       public <R> R accept(Visitor<R> visitor) {
          return visitor.visitBinary(this);
       }
+
       Binary(Expr _left, Token _operator, Expr _right) {
-         this.left=_left;
-         this.operator=_operator;
-         this.right=_right;
+         this.left = _left;
+         this.operator = _operator;
+         this.right = _right;
       }
+
       final Expr left;
       final Token operator;
       final Expr right;
-   }
 
+      // how the Interpreter evaluates this operator, rewritten as it sees the operand types, see BinaryNode
+      BinaryNode node = BinaryNode.UNINITIALIZED;
+   }
 
    static class Unary extends Expr {
       @Override
@@ -39,22 +45,24 @@ public abstract class Expr {
       }
 
       Unary(Token _operator, Expr _expression) {
-         this.operator=_operator;
-         this.expression=_expression;
+         this.operator = _operator;
+         this.expression = _expression;
       }
 
       final Token operator;
       final Expr expression;
    }
-    
+
    static class Grouping extends Expr {
       @Override
       public <R> R accept(Visitor<R> visitor) {
          return visitor.visitGrouping(this);
       }
+
       Grouping(Expr _expression) {
-         this.expression=_expression;
+         this.expression = _expression;
       }
+
       final Expr expression;
    }
 
@@ -63,15 +71,17 @@ public abstract class Expr {
       public <R> R accept(Visitor<R> visitor) {
          return visitor.visitLiteral(this);
       }
+
       Literal(Object _value) {
          this.value = _value;
       }
+
       final Object value;
    }
 
    static class Ternary extends Expr {
       @Override
-      <R> R accept(Expr.Visitor<R> visitor) {
+      public <R> R accept(Visitor<R> visitor) {
          return visitor.visitTernary(this);
       }
 
@@ -87,18 +97,27 @@ public abstract class Expr {
    }
 
    static class Variable extends Expr {
+      @Override
       public <R> R accept(Visitor<R> visitor) {
          return visitor.visitVariable(this);
       }
 
       Variable(Token _name) {
          this.name = _name;
+         this.global = new GlobalCache(_name);
       }
 
       final Token name;
+      // for the Interpreter, when the variable is a global
+      final GlobalCache global;
+
+      // where the variable lives, set by the Resolver
+      int depth = Resolver.GLOBAL;
+      int slot = Resolver.GLOBAL;
    }
 
    static class Assignment extends Expr {
+      @Override
       public <R> R accept(Visitor<R> visitor) {
          return visitor.visitAssignment(this);
       }
@@ -106,9 +125,16 @@ public abstract class Expr {
       Assignment(Token _name, Expr _expression) {
          this.name = _name;
          this.expression = _expression;
+         this.global = new GlobalCache(_name);
       }
 
       final Token name;
       final Expr expression;
+      // for the Interpreter, when the variable is a global
+      final GlobalCache global;
+
+      // where the variable lives, set by the Resolver
+      int depth = Resolver.GLOBAL;
+      int slot = Resolver.GLOBAL;
    }
 }
@@ -0,0 +1,287 @@
+package com.jlox;
+
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A compact encoding of a parsed program, the serialization format of the .loxc cache (see CompileCache)
+// Instead of an object per Expr/Stmt node and a Token object per operator and name, all the nodes live next to each
+// other in a single int arena, an int[] or a mapped .loxc file. No engine runs from the arena: a program is executed
+// from the Stmt and Expr objects decoded out of it, so the arena only saves memory while nothing is running it.
+// A node is its offset in the arena and is laid out as its kind followed by its operands:
+//
+//      BINARY          kind, left, operator, right
+//      UNARY           kind, operator, operand
+//      GROUPING        kind, expression
+//      LITERAL         kind, constant
+//      TERNARY         kind, conditional, trueBranch, falseBranch
+//      VARIABLE        kind, name
+//      ASSIGNMENT      kind, name, value
+//      EXPR_STMT       kind, expression
+//      PRINT_STMT      kind, expression
+//      VAR_DEC_STMT    kind, name, initialiser
+//      BLOCK_STMT      kind, statement count, statements...
+//      IF_STMT         kind, conditional, thenStatement, elseStatement
+//
+// where a child is the offset of its node (NO_NODE for a missing one), a constant is an index in the constant pool and
+// a token (operator or name) takes 2 ints: its type ordinal with the constant index of its lexeme, and its line.
+// Equal literals and lexemes share one pool entry.
+// The engines and PNPrinter get it through statements() and expression(), which decode new Stmt and Expr objects on
+// demand, a top level statement at a time
+public final class FlatAst {
+    static final int NO_NODE = -1;
+
+    private static final int BINARY = 0;
+    private static final int UNARY = 1;
+    private static final int GROUPING = 2;
+    private static final int LITERAL = 3;
+    private static final int TERNARY = 4;
+    private static final int VARIABLE = 5;
+    private static final int ASSIGNMENT = 6;
+    private static final int EXPR_STMT = 7;
+    private static final int PRINT_STMT = 8;
+    private static final int VAR_DEC_STMT = 9;
+    private static final int BLOCK_STMT = 10;
+    private static final int IF_STMT = 11;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // a token's lexeme constant index shares an int with its type ordinal, which takes the low 8 bits
+    static final int MAX_LEXEME_CONSTANT = (1 << 24) - 1;
+
+    final IntBuffer nodes;
+    final Object[] constants;
+
+    // the offsets of the top level statements
+    final int[] roots;
+
+    // the shared SymbolTable id + 1 of each lexeme constant of a name, 0 until a token of it is decoded
+    private int[] symbols;
+
+    FlatAst (IntBuffer _nodes, Object[] _constants, int[] _roots) {
+        this.nodes = _nodes;
+        this.constants = _constants;
+        this.roots = _roots;
+    }
+
+    /**
+     * Encodes the statements of a program, as returned by Parser.startParsing()
+     */
+    static FlatAst encode(List<Stmt> statements) {
+        Encoder encoder = new Encoder();
+        int[] roots = new int[statements.size()];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = encoder.statement(statements.get(i));
+        }
+        return new FlatAst(IntBuffer.wrap(Arrays.copyOf(encoder.nodes, encoder.size)), encoder.constants.toArray(), roots);
+    }
+
+    /**
+     * The top level statements, every get() decodes a new Stmt tree of its statement
+     */
+    public List<Stmt> statements() {
+        return new AbstractList<Stmt>() {
+            @Override
+            public Stmt get(int index) {
+                return statement(roots[index]);
+            }
+
+            @Override
+            public int size() {
+                return roots.length;
+            }
+        };
+    }
+
+    Stmt statement(int node) {
+        if (node == NO_NODE) return null;
+
+        switch (nodes.get(node)) {
+            case EXPR_STMT:
+                return new Stmt.ExprStmt(expression(nodes.get(node + 1)));
+            case PRINT_STMT:
+                return new Stmt.PrintStmt(expression(nodes.get(node + 1)));
+            case VAR_DEC_STMT:
+                return new Stmt.VarDecStmt(token(node + 1), expression(nodes.get(node + 3)));
+            case BLOCK_STMT:
+                int count = nodes.get(node + 1);
+                List<Stmt> statements = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    statements.add(statement(nodes.get(node + 2 + i)));
+                }
+                return new Stmt.BlockStmt(statements);
+            case IF_STMT:
+                return new Stmt.IfStmt(expression(nodes.get(node + 1)), statement(nodes.get(node + 2)), statement(nodes.get(node + 3)));
+            default:
+                throw new IllegalStateException("not a statement node: " + nodes.get(node));
+        }
+    }
+
+    Expr expression(int node) {
+        if (node == NO_NODE) return null;
+
+        switch (nodes.get(node)) {
+            case BINARY:
+                return new Expr.Binary(expression(nodes.get(node + 1)), token(node + 2), expression(nodes.get(node + 4)));
+            case UNARY:
+                return new Expr.Unary(token(node + 1), expression(nodes.get(node + 3)));
+            case GROUPING:
+                return new Expr.Grouping(expression(nodes.get(node + 1)));
+            case LITERAL:
+                return new Expr.Literal(constants[nodes.get(node + 1)]);
+            case TERNARY:
+                return new Expr.Ternary(expression(nodes.get(node + 1)), expression(nodes.get(node + 2)), expression(nodes.get(node + 3)));
+            case VARIABLE:
+                return new Expr.Variable(token(node + 1));
+            case ASSIGNMENT:
+                return new Expr.Assignment(token(node + 1), expression(nodes.get(node + 3)));
+            default:
+                throw new IllegalStateException("not an expression node: " + nodes.get(node));
+        }
+    }
+
+    // the token stored in the 2 ints at offset at
+    private Token token(int at) {
+        int typeAndLexeme = nodes.get(at);
+        TokenType type = TYPES[typeAndLexeme & 0xFF];
+        int lexeme = typeAndLexeme >>> 8;
+        int symbol = type == TokenType.IDENTIFIER ? symbol(lexeme) : -1;
+        return new Token(type, null, nodes.get(at + 1), (String)constants[lexeme], symbol);
+    }
+
+    // looked up once per name rather than once per token
+    private int symbol(int lexeme) {
+        if (symbols == null) symbols = new int[constants.length];
+        if (symbols[lexeme] == 0) {
+            symbols[lexeme] = SymbolTable.sharedSymbol((String)constants[lexeme]) + 1;
+        }
+        return symbols[lexeme] - 1;
+    }
+
+    // Appends the nodes of a Stmt/Expr tree to the arena, children before their parent
+    private static class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        int[] nodes = new int[256];
+        int size = 0;
+        final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+        int statement(Stmt statement) {
+            return statement == null ? NO_NODE : statement.accept(this);
+        }
+
+        int expression(Expr expression) {
+            return expression == null ? NO_NODE : expression.accept(this);
+        }
+
+        private int node(int kind, int... operands) {
+            int node = size;
+            if (size + operands.length + 1 > nodes.length) {
+                nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, size + operands.length + 1));
+            }
+            nodes[size++] = kind;
+            System.arraycopy(operands, 0, nodes, size, operands.length);
+            size += operands.length;
+            return node;
+        }
+
+        private int constant(Object value) {
+            Integer index = constantIndex.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                constantIndex.put(value, index);
+            }
+            return index;
+        }
+
+        private int typeAndLexeme(Token token) {
+            int lexeme = constant(token.lexeme);
+            if (lexeme > MAX_LEXEME_CONSTANT) {
+                throw new IllegalStateException("too many constants to encode, a lexeme needs a constant index of at most "
+                    + MAX_LEXEME_CONSTANT);
+            }
+            return lexeme << 8 | token.tokenType.ordinal();
+        }
+
+        @Override
+        public Integer visitBinary(Expr.Binary expression) {
+            int left = expression(expression.left);
+            int right = expression(expression.right);
+            return node(BINARY, left, typeAndLexeme(expression.operator), expression.operator.line(), right);
+        }
+
+        @Override
+        public Integer visitUnary(Expr.Unary expression) {
+            int operand = expression(expression.expression);
+            return node(UNARY, typeAndLexeme(expression.operator), expression.operator.line(), operand);
+        }
+
+        @Override
+        public Integer visitGrouping(Expr.Grouping expression) {
+            return node(GROUPING, expression(expression.expression));
+        }
+
+        @Override
+        public Integer visitLiteral(Expr.Literal expression) {
+            return node(LITERAL, constant(expression.value));
+        }
+
+        @Override
+        public Integer visitTernary(Expr.Ternary expression) {
+            int conditional = expression(expression.conditional);
+            int trueBranch = expression(expression.trueBranch);
+            int falseBranch = expression(expression.falseBranch);
+            return node(TERNARY, conditional, trueBranch, falseBranch);
+        }
+
+        @Override
+        public Integer visitVariable(Expr.Variable expression) {
+            return node(VARIABLE, typeAndLexeme(expression.name), expression.name.line());
+        }
+
+        @Override
+        public Integer visitAssignment(Expr.Assignment assignment) {
+            int value = expression(assignment.expression);
+            return node(ASSIGNMENT, typeAndLexeme(assignment.name), assignment.name.line(), value);
+        }
+
+        @Override
+        public Integer visitExprStmt(Stmt.ExprStmt expressionStatement) {
+            return node(EXPR_STMT, expression(expressionStatement.expression));
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.PrintStmt printStatement) {
+            return node(PRINT_STMT, expression(printStatement.expression));
+        }
+
+        @Override
+        public Integer visitVarDecStmt(Stmt.VarDecStmt varDecStatement) {
+            int initialiser = expression(varDecStatement.initialiser);
+            return node(VAR_DEC_STMT, typeAndLexeme(varDecStatement.name), varDecStatement.name.line(), initialiser);
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.BlockStmt blockStatement) {
+            List<Stmt> statements = blockStatement.blockStatementList;
+            int[] operands = new int[statements.size() + 1];
+            operands[0] = statements.size();
+            for (int i = 0; i < statements.size(); i++) {
+                operands[i + 1] = statement(statements.get(i));
+            }
+            return node(BLOCK_STMT, operands);
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.IfStmt ifStatement) {
+            int conditional = expression(ifStatement.conditional);
+            int thenStatement = statement(ifStatement.thenStatement);
+            int elseStatement = statement(ifStatement.elseStatemeStmt);
+            return node(IF_STMT, conditional, thenStatement, elseStatement);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.jlox;
+
+// The inline cache of one place a global variable is read or assigned, e.g. of a Variable node: the Global cell the
+// name was found in last, so that from then on the access is a field read instead of a hash lookup of the name.
+// Cells stay valid for as long as their environment lives, the only check is that the cell is one of the globals of the
+// engine that runs the code now, since the same statements can be run by several engines.
+// An undefined variable is not cached, get() and assign() of the Environment report it as before
+final class GlobalCache {
+    final Token name;
+
+    // the id of the globals the cell was found in, not the Environment itself, which the cache would keep alive
+    private int owner;
+    private Environment.Global cell;
+
+    GlobalCache(Token _name) {
+        this.name = _name;
+    }
+
+    Object get(Environment globals) {
+        Environment.Global global = lookup(globals);
+        if (global == null) return globals.get(name);
+        return global.value;
+    }
+
+    void assign(Environment globals, Object value) {
+        Environment.Global global = lookup(globals);
+        if (global == null) globals.assign(name, value);
+        else global.value = value;
+    }
+
+    private Environment.Global lookup(Environment globals) {
+        if (owner == globals.id) return cell;
+
+        Environment.Global global = globals.global(name);
+        if (global != null) {
+            owner = globals.id;
+            cell = global;
+        }
+        return global;
+    }
+}
@@ -0,0 +1,270 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Incremental front end for a source that keeps being edited, e.g. a script in watch mode
+// It holds the source, its tokens and its top level declarations. An edit re-lexes and re-parses only the declarations
+// it touches and every other Stmt subtree is reused as it is. When the edit adds or removes lines, the declarations
+// after it keep their statements and only have their lines moved, see Token.Shifted.
+// The redone region grows a declaration at a time while the new tokens do not line up with the old ones, e.g. when the
+// edit opens a string or a block that now swallows the declarations after it
+public class IncrementalParser {
+    // a top level declaration, made of the tokens [end of the previous declaration, end)
+    private static class Declaration {
+        Declaration(Stmt _statement, int _end, int[] _lineShift, ErrorLog _lexerErrors, ErrorLog _parserErrors) {
+            this.statement = _statement;
+            this.end = _end;
+            this.lineShift = _lineShift;
+            this.lexerErrors = _lexerErrors;
+            this.parserErrors = _parserErrors;
+        }
+
+        final Stmt statement;
+        int end;
+        // the lines the declaration moved since it was parsed, shared by the Tokens of the statement and its errors
+        final int[] lineShift;
+        final ErrorLog lexerErrors;
+        final ErrorLog parserErrors;
+    }
+
+    private final StringBuilder source;
+    private final SymbolTable symbolTable = new SymbolTable();
+    private final TokenBuffer tokens;
+
+    // The last declaration is always the tail: it has no statement and holds the tokens after the last declaration
+    // (only the EOF token, unless there is a syntax error) along with the whitespace and comments at the end of the source
+    private final List<Declaration> declarations = new ArrayList<>();
+
+    // the old declarations the last edit lexed and parsed again, see Benchmark
+    int reparsedCount = 0;
+
+    IncrementalParser (CharSequence _source) {
+        this.source = new StringBuilder(_source);
+        this.tokens = new TokenBuffer(source, symbolTable, source.length());
+
+        // the first parse is an edit that replaces the tail of an empty source
+        tokens.add(TokenType.EOF, 0, 0, 1);
+        declarations.add(new Declaration(null, 0, new int[1], new ErrorLog(), new ErrorLog()));
+        reparse(0, 0, 0);
+    }
+
+    /**
+     * Replaces removed characters at offset with inserted and brings the tokens and the declarations up to date
+     */
+    public void edit(int offset, int removed, CharSequence inserted) {
+        int tail = declarations.size() - 1;
+
+        // the declarations touched by the edit, one that ends right where the edit starts (or starts right where
+        // it ends) is included because the edit may extend its last (or first) token
+        int low = 0;
+        int high = tail;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (endOffset(middle) < offset) low = middle + 1;
+            else high = middle;
+        }
+        int first = low;
+
+        int last = first;
+        while (last < tail && endOffset(last) < offset + removed) last++;
+        if (last < tail && endOffset(last) == offset + removed) last++;
+
+        // overwrite in place what we can, StringBuilder.replace() moves the rest of the source even when the lengths match
+        int overwritten = Math.min(removed, inserted.length());
+        for (int i = 0; i < overwritten; i++) {
+            source.setCharAt(offset + i, inserted.charAt(i));
+        }
+        if (removed > overwritten) {
+            source.delete(offset + overwritten, offset + removed);
+        }
+        else if (inserted.length() > overwritten) {
+            source.insert(offset + overwritten, inserted, overwritten, inserted.length());
+        }
+
+        reparse(first, last, inserted.length() - removed);
+    }
+
+    /**
+     * Brings the parser up to date with a new version of the whole source, the part that differs from the current one
+     * is applied as a single edit
+     */
+    public void update(CharSequence newSource) {
+        int oldLength = source.length();
+        int newLength = newSource.length();
+
+        int prefix = 0;
+        while (prefix < oldLength && prefix < newLength && source.charAt(prefix) == newSource.charAt(prefix)) {
+            prefix++;
+        }
+
+        int suffix = 0;
+        while (suffix < oldLength - prefix && suffix < newLength - prefix
+                && source.charAt(oldLength - 1 - suffix) == newSource.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+
+        if (prefix == oldLength && prefix == newLength) return;
+
+        edit(prefix, oldLength - prefix - suffix, newSource.subSequence(prefix, newLength - suffix));
+    }
+
+    /**
+     * The top level declarations, up to the first syntax error
+     */
+    public List<Stmt> statements() {
+        List<Stmt> statements = new ArrayList<>(declarations.size() - 1);
+        for (int i = 0; i < declarations.size() - 1; i++) {
+            statements.add(declarations.get(i).statement);
+        }
+        return statements;
+    }
+
+    public boolean hasErrors() {
+        for (Declaration declaration : declarations) {
+            if (!declaration.lexerErrors.isEmpty() || !declaration.parserErrors.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reports the errors of the current source through Jlox.error in the order a full run would, lexer errors first
+     */
+    public void reportErrors() {
+        for (Declaration declaration : declarations) declaration.lexerErrors.report(declaration.lineShift[0]);
+        for (Declaration declaration : declarations) declaration.parserErrors.report();
+    }
+
+    /**
+     * Re-lexes and re-parses the declarations [first, last] of which the source has already been edited,
+     * the characters after the edit moved by offsetDelta
+     */
+    private void reparse(int first, int last, int offsetDelta) {
+        int tail = declarations.size() - 1;
+
+        for (;;) {
+            boolean toEnd = last == tail;
+            int regionStart = first == 0 ? 0 : endOffset(first - 1);
+            int regionEnd = toEnd ? source.length() : endOffset(last) + offsetDelta;
+            int startLine = first == 0 ? 1 : tokens.line(declarations.get(first - 1).end - 1);
+            int firstToken = first == 0 ? 0 : declarations.get(first - 1).end;
+
+            ErrorLog lexerErrors = new ErrorLog();
+            Lexer lexer = new Lexer(source, symbolTable, regionStart, regionEnd, startLine);
+            lexer.errorLog = lexerErrors;
+            TokenBuffer regionTokens = lexer.scanTokens();
+
+            // an else at the start of the region may now belong to the if statement before it
+            if (first > 0 && regionTokens.type(0) == TokenType.ELSE) {
+                first--;
+                continue;
+            }
+
+            int lineDelta = 0;
+            if (!toEnd) {
+                // a string or comment that now runs past the region, or to its end in place of the old last token,
+                // means that the tokens after the region are not the old ones. A different number of lines in the
+                // region only moves them
+                int count = regionTokens.size() - 1;
+                int lexedEnd = count == 0
+                    ? regionStart
+                    : regionTokens.start(count - 1) + regionTokens.length(count - 1);
+                if (lexer.position() != regionEnd || lexedEnd != regionEnd) {
+                    last++;
+                    continue;
+                }
+                lineDelta = lexer.line() - tokens.line(declarations.get(last).end - 1);
+            }
+
+            // parse the region one declaration at a time so that we know where each of them ends
+            List<Declaration> parsed = new ArrayList<>();
+            Parser parser = new Parser(regionTokens);
+            boolean failed = false;
+            for (;;) {
+                ErrorLog parserErrors = new ErrorLog();
+                parser.errorLog = parserErrors;
+                int[] lineShift = new int[1];
+                regionTokens.lineShift = lineShift;
+                Stmt statement = parser.nextDeclaration();
+                if (statement == null) {
+                    failed = parser.failed();
+                    parsed.add(new Declaration(null, firstToken + parser.position(), lineShift, null, parserErrors));
+                    break;
+                }
+                parsed.add(new Declaration(statement, firstToken + parser.position(), lineShift, null, parserErrors));
+            }
+
+            if (!toEnd) {
+                // the old declarations after the region are still valid only if the region parses on its own and the
+                // declaration after it does not continue the region's last if statement. The region also needs a
+                // declaration of its own to hold the lexer errors of its whitespace and comments
+                int next = regionTokens.size() - 1;
+                if (failed || parsed.size() == 1 || tokens.type(declarations.get(last).end) == TokenType.ELSE) {
+                    last = failed ? tail : last + 1;
+                    continue;
+                }
+
+                // the region ends with its own EOF, the old declarations after it follow instead
+                parsed.remove(parsed.size() - 1);
+                replace(first, last, regionTokens, next, offsetDelta, lineDelta, parsed, lexerErrors, regionStart);
+                return;
+            }
+
+            replace(first, last, regionTokens, regionTokens.size(), offsetDelta, 0, parsed, lexerErrors, regionStart);
+            return;
+        }
+    }
+
+    /**
+     * Swaps the tokens and the declarations [first, last] for the re-parsed ones, the declarations after them move by
+     * lineDelta lines
+     */
+    private void replace(int first, int last, TokenBuffer regionTokens, int count, int offsetDelta, int lineDelta,
+                         List<Declaration> parsed, ErrorLog lexerErrors, int regionStart) {
+        int firstToken = first == 0 ? 0 : declarations.get(first - 1).end;
+        int lastToken = last == declarations.size() - 1 ? tokens.size() : declarations.get(last).end;
+        int tokenDelta = count - (lastToken - firstToken);
+        reparsedCount = last - first + 1;
+
+        tokens.replace(firstToken, lastToken, regionTokens, count, offsetDelta, lineDelta);
+        if (tokenDelta != 0 || lineDelta != 0) {
+            for (int i = last + 1; i < declarations.size(); i++) {
+                Declaration declaration = declarations.get(i);
+                declaration.end += tokenDelta;
+                declaration.lineShift[0] += lineDelta;
+            }
+        }
+
+        // hand each new declaration the lexer errors found in its part of the source
+        List<Declaration> replacements = new ArrayList<>(parsed.size());
+        int from = regionStart;
+        for (int i = 0; i < parsed.size(); i++) {
+            Declaration declaration = parsed.get(i);
+            int to = i == parsed.size() - 1 ? Integer.MAX_VALUE : tokenEnd(declaration.end - 1);
+            replacements.add(new Declaration(declaration.statement, declaration.end, declaration.lineShift,
+                lexerErrors.lexerErrors(from, to), declaration.parserErrors));
+            from = to;
+        }
+
+        if (replacements.size() == last - first + 1) {
+            // the usual case of an edit inside a declaration, nothing has to move
+            for (int i = 0; i < replacements.size(); i++) {
+                declarations.set(first + i, replacements.get(i));
+            }
+        }
+        else {
+            declarations.subList(first, last + 1).clear();
+            declarations.addAll(first, replacements);
+        }
+    }
+
+    // the offset right after the last token of declaration i, the end of the source for the tail
+    private int endOffset(int i) {
+        if (i == declarations.size() - 1) return source.length();
+        return tokenEnd(declarations.get(i).end - 1);
+    }
+
+    private int tokenEnd(int token) {
+        return tokens.start(token) + tokens.length(token);
+    }
+}
@@ -1,5 +1,6 @@
 package com.jlox;
 
+import java.util.Arrays;
 import java.util.List;
 
 import com.jlox.Expr.Assignment;
@@ -11,59 +12,122 @@ import com.jlox.Stmt.VarDecStmt;
 // The interpreter is implemented as a Visitor according to the Visitor pattern
 // Interpreter to evaluate syntax tree nodes of each type
 // Its tree-walking the interpreter in post-order traversal scheme
+// Numbers are evaluated unboxed where it can: see evaluateNumber(), and the NUMBER slots of Environment
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-  private Environment environment = new Environment();
+  // what boxed holds after evaluateNumber() produced a number
+  private static final Object UNBOXED = new Object();
+
+  // the variables of the top level statements, the ones of the blocks live in frames chained to it
+  private final Environment globals = new Environment();
+  private Environment environment = globals;
+
+  private final Resolver resolver = new Resolver();
+
+  // the frames of the blocks that are done, by their number of slots, each the head of a list linked through enclosing.
+  // A frame can be reused as soon as its block is done: without closures, nothing keeps one once the block is left
+  private Environment[] freeFrames = new Environment[8];
+
+  // the value of the last evaluateNumber() when it was not a number, else UNBOXED
+  private Object boxed = UNBOXED;
+
+  // what print statements write to
+  private final OutputSink out;
+
+  // null unless jlox --profile
+  private final Profiler profiler;
+
+  public Interpreter() {
+    this(new OutputSink(System.out, OutputSink.FlushPolicy.WHEN_FULL));
+  }
+
+  Interpreter(OutputSink _out) {
+    this(_out, null);
+  }
+
+  Interpreter(OutputSink _out, Profiler _profiler) {
+    this.out = _out;
+    this.profiler = _profiler;
+  }
 
   public void interpret (List<Stmt> statements) {
+      if (profiler != null) profiler.start();
       try {
         for (Stmt statement : statements) {
+          resolver.resolveTopLevel(statement);
           execute(statement);
         }
       } 
       catch (RuntimeError error) {
+        // what the script printed comes before the error
+        out.flush();
         Jlox.runtimeError(error);
       }
+      finally {
+        out.flush();
+      }
   }
 
   
 
   @Override
   public Void visitExprStmt(Stmt.ExprStmt expressionStmt) {
-    evaluate(expressionStmt.expression);
+    evaluateNumber(expressionStmt.expression);
     return null;
   }
  
   @Override
   public Void visitPrintStmt(Stmt.PrintStmt printStmt) {
-    Object value = evaluate(printStmt.expression);
-    System.out.println(stringify(value));
+    double number = evaluateNumber(printStmt.expression);
+    if (boxed == UNBOXED) out.printLine(number);
+    else out.printLine(boxed);
     return null;
   }
 
   @Override
   public Void visitVarDecStmt(VarDecStmt varDecStatement) {
-      Object initialiser = null;
+      double number = 0;
+      boxed = null;
       if (varDecStatement.initialiser != null) {
-        initialiser = evaluate(varDecStatement.initialiser);
+        number = evaluateNumber(varDecStatement.initialiser);
       }
 
-      environment.define(varDecStatement.name, initialiser);
+      if (varDecStatement.slot == Resolver.GLOBAL) {
+        globals.define(varDecStatement.name, boxed == UNBOXED ? number : boxed);
+      }
+      else if (boxed == UNBOXED) {
+        environment.defineNumberAt(varDecStatement.slot, number);
+      }
+      else {
+        environment.defineAt(varDecStatement.slot, boxed);
+      }
       return null;
   }
 
   @Override
   public Void visitBlockStmt(BlockStmt blockStatement) {
+    // a block that declares no variables needs no frame, the Resolver does not count it either
+    if (blockStatement.slotCount == 0) {
+      for (Stmt statement : blockStatement.blockStatementList) {
+        execute(statement);
+      }
+      return null;
+    }
+
     // create a new environment by passing the current environment as the "enclosing" parameter of the Environment class, thereby creating an environment chain, if the block statements nest
-    Environment newEnvironment = new Environment(this.environment);
+    Environment newEnvironment = newFrame(blockStatement.slotCount);
     executeBlock(blockStatement.blockStatementList, newEnvironment);
+    // not when the block fails, the frame is simply dropped then
+    freeFrame(newEnvironment);
     return null;
   }
 
   @Override
   // Its a thin wrapper around java's if statement
   public Void visitIfStmt(IfStmt ifStatement) {
-    if (isTruthy(evaluate(ifStatement.conditional))) {
+    // a number is always truthy
+    evaluateNumber(ifStatement.conditional);
+    if (boxed == UNBOXED || isTruthy(boxed)) {
       execute(ifStatement.thenStatement);
     }
     else if (ifStatement.elseStatemeStmt != null) {
@@ -75,56 +139,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitVariable(Variable expression) {
-      return environment.get(expression.name);
+      if (expression.depth == Resolver.GLOBAL) {
+        return expression.global.get(globals);
+      }
+      return environment.getAt(expression.depth, expression.slot);
   }
 
   @Override
   public Object visitAssignment(Assignment assignment) {
-    // evaluate the expression in the assignment statement and put the value in the target which may be a variable
-    Object value = evaluate(assignment.expression);
-    environment.assign(assignment.name, value);
-    return value;
+    double number = assign(assignment);
+    return boxed == UNBOXED ? number : boxed;
   }
+
   @Override
   public Object visitBinary(Expr.Binary expression) {
-      Object left = evaluate(expression.left);
-      Object right = evaluate(expression.right);
-
-      switch (expression.operator.tokenType) {
-        case TokenType.MINUS:
-            checkNumberOperand(expression.operator, left, right);
-            return (double)left - (double)right;   
-        case TokenType.STAR:
-            checkNumberOperand(expression.operator, left, right);
-            return (double)left * (double)right;
-        case TokenType.SLASH:
-            checkNumberOperand(expression.operator, left, right);
-            return (double)left / (double)right;
-        case TokenType.PLUS:
-            if (left instanceof String && right instanceof String) {
-              return (String)left + (String)right;
-            }
-            if (left instanceof Double && right instanceof Double) {
-              return (double)left + (double)right;
-            }
-            throw new RuntimeError(expression.operator, "Operands must be two strings or two numbers");
-        case TokenType.GREATER:
-            return (double)left > (double)right;
-        case TokenType.GREATER_EQUALS:
-            return (double)left >= (double)right;
-        case TokenType.LESSER:
-            return (double)left < (double)right;
-        case TokenType.LESSER_EQUALS:
-            return (double)left <= (double)right;
-        case TokenType.EQUALS_EQUALS:
-            return isEqual(left, right);
-        case TokenType.BANG_EQUALS:
-            return !isEqual(left, right);
-        default:
-            break;
-      }
-
-      return null;
+      double number = binary(expression);
+      return boxed == UNBOXED ? number : boxed;
   }
 
   @Override
@@ -139,21 +169,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitUnary(Expr.Unary expression) {
-      Object evaluatedExpression = evaluate(expression.expression);
-
-      switch (expression.operator.tokenType) {
-        case TokenType.MINUS:
-            checkNumberOperand(expression.operator, evaluatedExpression);
-            return -(double)evaluatedExpression;
-
-        case TokenType.BANG:
-            return !isTruthy(evaluatedExpression);
-        default:
-            break;
-      }
-
-      // unreachable code, but due to java's static type checking we need to return null from here
-      return null;
+      double number = unary(expression);
+      return boxed == UNBOXED ? number : boxed;
   }
 
   @Override
@@ -169,55 +186,53 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       }
   }
 
-  /**
-   * check number operand for unary operator
-   */
-  private void checkNumberOperand (Token operator, Object operand) {
-      if (operand instanceof Double) return;
-      throw new RuntimeError(operator, "Operand must be a number");
-  }
-
-  /**
-   * overloaded method to check left & right operands must be a number for binary operators
-   */
-  private void checkNumberOperand (Token operator, Object left, Object right) {
-      if (left instanceof Double && right instanceof Double) return;
-      throw new RuntimeError(operator, "Operand must be a number");
-  }
-
-  private boolean isEqual (Object a, Object b) {
+  // isEqual(), isTruthy() and stringify() are shared with the VM, so that both engines agree on them
+  static boolean isEqual (Object a, Object b) {
       if (a == null && b == null) return true;
+      // either string may be a Rope, which compares its characters once flattened
+      if (a instanceof CharSequence x && b instanceof CharSequence y) return x.toString().equals(y.toString());
       return a.equals(b);
   }
 
   /**
    * we are treating "nil" and false as falsy values other values which the expressions evaluates to are truthy
    */
-  private boolean isTruthy(Object evaluatedExpression) {
+  static boolean isTruthy(Object evaluatedExpression) {
       if (evaluatedExpression == null) return false;
       else if (evaluatedExpression instanceof Boolean) return (boolean) evaluatedExpression;
       
       return true;
   }
 
-  private String stringify(Object result) {
+  static String stringify(Object result) {
       if (result == null) return "nil";
       else if (result instanceof Double) {
-        String text = result.toString();
-        if (text.endsWith(".0")) {
-            return text.substring(0, text.length() - 2);
-        }
-        return text;
+        return stringify((double)result);
       }
 
       return result.toString();
   }
 
+  static String stringify(double number) {
+      String text = Double.toString(number);
+      if (text.endsWith(".0")) {
+          return text.substring(0, text.length() - 2);
+      }
+      return text;
+  }
+
   /**
    * Executes LOX statements
    */
   private void execute(Stmt stmt) {
+    if (profiler == null) {
+      stmt.accept(this);
+      return;
+    }
+
+    profiler.enter(stmt);
     stmt.accept(this);
+    profiler.exit();
   }
 
   /**
@@ -227,6 +242,146 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return expression.accept(this);
   }
 
+  /**
+   * Evaluates an expression like evaluate(), but without boxing its numbers: the operators on numbers, the variables
+   * and assignments of numbers and the literals are evaluated here, and their value is returned as a double.
+   * When the value is not a number, it returns 0 and leaves the value in boxed, callers check for boxed == UNBOXED
+   */
+  private double evaluateNumber(Expr expression) {
+    // the most common nodes first
+    if (expression instanceof Expr.Binary binary) {
+      return binary(binary);
+    }
+    if (expression instanceof Variable variable) {
+      return variable(variable);
+    }
+    if (expression instanceof Expr.Literal literal) {
+      return unbox(literal.value);
+    }
+    if (expression instanceof Expr.Grouping grouping) {
+      return evaluateNumber(grouping.expression);
+    }
+    if (expression instanceof Expr.Unary unary) {
+      return unary(unary);
+    }
+    if (expression instanceof Assignment assignment) {
+      return assign(assignment);
+    }
+    if (expression instanceof Expr.Ternary ternary) {
+      // the condition has to be a boolean
+      boolean conditionalResult = (boolean)evaluate(ternary.conditional);
+      return evaluateNumber(conditionalResult ? ternary.trueBranch : ternary.falseBranch);
+    }
+    return unbox(evaluate(expression));
+  }
+
+  private double unbox(Object value) {
+    if (value instanceof Double number) {
+      boxed = UNBOXED;
+      return number;
+    }
+    boxed = value;
+    return 0;
+  }
+
+  private double binary(Expr.Binary expression) {
+    double left = evaluateNumber(expression.left);
+    Object leftBoxed = boxed;
+    double right = evaluateNumber(expression.right);
+
+    if (leftBoxed == UNBOXED && boxed == UNBOXED) {
+      // booleans are boxed to the cached Boolean.TRUE and FALSE, which allocates nothing
+      switch (expression.operator.tokenType) {
+        case TokenType.PLUS: return left + right;
+        case TokenType.MINUS: return left - right;
+        case TokenType.STAR: return left * right;
+        case TokenType.SLASH: return left / right;
+        case TokenType.GREATER: boxed = left > right; return 0;
+        case TokenType.GREATER_EQUALS: boxed = left >= right; return 0;
+        case TokenType.LESSER: boxed = left < right; return 0;
+        case TokenType.LESSER_EQUALS: boxed = left <= right; return 0;
+        // as Double.equals(), so NaN == NaN and 0 != -0 like isEqual()
+        case TokenType.EQUALS_EQUALS: boxed = Double.doubleToLongBits(left) == Double.doubleToLongBits(right); return 0;
+        case TokenType.BANG_EQUALS: boxed = Double.doubleToLongBits(left) != Double.doubleToLongBits(right); return 0;
+        default: boxed = null; return 0;
+      }
+    }
+
+    // strings, or operands of the wrong types: the site's node knows the operator and the operand types it sees
+    Object leftValue = leftBoxed == UNBOXED ? (Object)left : leftBoxed;
+    Object rightValue = boxed == UNBOXED ? (Object)right : boxed;
+    return unbox(expression.node.execute(expression, leftValue, rightValue));
+  }
+
+  private double unary(Expr.Unary expression) {
+    double operand = evaluateNumber(expression.expression);
+
+    switch (expression.operator.tokenType) {
+      case TokenType.MINUS:
+        if (boxed != UNBOXED) throw new RuntimeError(expression.operator, "Operand must be a number");
+        return -operand;
+      case TokenType.BANG:
+        // a number is truthy
+        boxed = boxed != UNBOXED && !isTruthy(boxed);
+        return 0;
+      default:
+        boxed = null;
+        return 0;
+    }
+  }
+
+  private double variable(Variable expression) {
+    if (expression.depth == Resolver.GLOBAL) {
+      return unbox(expression.global.get(globals));
+    }
+
+    Environment frame = environment.ancestor(expression.depth);
+    if (frame.holdsNumber(expression.slot)) {
+      boxed = UNBOXED;
+      return frame.numberAt(expression.slot);
+    }
+    return unbox(frame.getAt(0, expression.slot));
+  }
+
+  // evaluate the expression in the assignment statement and put the value in the target which may be a variable
+  private double assign(Assignment assignment) {
+    double number = evaluateNumber(assignment.expression);
+    if (assignment.depth == Resolver.GLOBAL) {
+      assignment.global.assign(globals, boxed == UNBOXED ? number : boxed);
+    }
+    else if (boxed == UNBOXED) {
+      environment.assignNumberAt(assignment.depth, assignment.slot, number);
+    }
+    else {
+      environment.assignAt(assignment.depth, assignment.slot, boxed);
+    }
+    return number;
+  }
+
+  /**
+   * A frame for a block, one from the free list if there is one of its size
+   */
+  private Environment newFrame(int slotCount) {
+    if (slotCount < freeFrames.length && freeFrames[slotCount] != null) {
+      Environment frame = freeFrames[slotCount];
+      freeFrames[slotCount] = frame.enclosing();
+      frame.link(environment);
+      return frame;
+    }
+    return new Environment(environment, slotCount);
+  }
+
+  private void freeFrame(Environment frame) {
+    int slotCount = frame.slotCount();
+    if (slotCount >= freeFrames.length) {
+      freeFrames = Arrays.copyOf(freeFrames, Math.max(slotCount + 1, freeFrames.length * 2));
+    }
+
+    frame.clear();
+    frame.link(freeFrames[slotCount]);
+    freeFrames[slotCount] = frame;
+  }
+
   /**
    * This method executes a block of statements by creating new environments and restring the previous environment when the block ends
    */
@@ -0,0 +1,1304 @@
+package com.jlox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jlox.Expr.Assignment;
+import com.jlox.Expr.Variable;
+import com.jlox.Stmt.BlockStmt;
+import com.jlox.Stmt.IfStmt;
+import com.jlox.Stmt.VarDecStmt;
+
+// An engine that compiles the statements to JVM bytecode (jlox --jit), for scripts that run long or run again
+// Every top level statement becomes static methods of a hidden class, written with ClassFileWriter and defined with
+// Lookup.defineHiddenClass(). Scripts have no loops or functions, so each method runs once per run of the script, and
+// HotSpot runs it in its interpreter until it has been called a few hundred times (C1 gives up on the largest methods
+// altogether). Interpreted bytecode only keeps up with the ClosureCompiler, whose lambdas HotSpot compiles once for all
+// the statements, on code that works on unboxed doubles: a statement with more than a few helper calls runs on the
+// ClosureCompiler instead, see MAX_CALL_PERCENT.
+// Every expression has a kind: DOUBLE when it is known to be a number, which stays an unboxed double on the operand
+// stack, BOOLEAN when it is known to be a boolean, an int on the stack, and OBJECT for everything else. Operators on
+// two doubles are single instructions; the other ones call the helpers at the end of this class, which do what the
+// Interpreter does, with the same errors on the same operator tokens. A double next to an OBJECT is passed to them
+// unboxed, the other operands are boxed.
+// The variables of the blocks become JVM locals, and a variable is an unboxed double local when all of its
+// definitions are DOUBLE expressions (see Analysis). A method looks up the Global cell of every global variable it uses
+// as it starts (see prologue()) and keeps it in a JVM local, so that reading or assigning a global is a field access.
+// A statement too large for one method (a JVM method has at most 64k of code) is split between several: the blocks that
+// do not fit keep their variables in a double[] and an Object[] frame passed from method to method. A statement that
+// cannot be split runs on the ClosureCompiler
+// Experimental: the generated code only gets ahead of the ClosureCompiler once HotSpot compiles it, after some 10000
+// runs of the same script in one JVM (Benchmark repeated 3000: 0.07-0.11 ms a run against 0.29-0.32 ms). Until then,
+// and on scripts that mostly use globals even after that, it is at best as fast while compiling takes ten times longer
+public class JitCompiler implements Expr.Visitor<Integer>, Stmt.Visitor<Void> {
+    /* the kinds of expression values */
+    private static final int DOUBLE = 0;
+    private static final int BOOLEAN = 1;
+    private static final int OBJECT = 2;
+
+    // a method gets no larger: HotSpot leaves methods of more than 8000 bytes of code to its interpreter
+    // (HugeMethodLimit), and it keeps every branch offset within its 16 bits
+    private static final int MAX_CODE = 8_000;
+
+    // the most of the operations of a statement, in percent, that may call helpers or box values for it to be compiled
+    private static final int MAX_CALL_PERCENT = 10;
+
+    // a new class is started beyond this, well before the 65535 constant pool entries of a class file
+    private static final int MAX_CONSTANTS = 40_000;
+
+    private static final String CLASS_NAME = "com/jlox/JitScript";
+    private static final String SELF = "com/jlox/JitCompiler";
+    private static final String OBJECT_TYPE = "Ljava/lang/Object;";
+    private static final String TOKEN_TYPE = "Lcom/jlox/Token;";
+    private static final String SINK = "com/jlox/OutputSink";
+    private static final String ENVIRONMENT = "com/jlox/Environment";
+    private static final String GLOBAL = "com/jlox/Environment$Global";
+
+    // every generated method takes the globals, the constants of the script and the frames of the statement
+    private static final String DESCRIPTOR = "(Lcom/jlox/Environment;[Ljava/lang/Object;[D[Ljava/lang/Object;)V";
+    private static final MethodType METHOD_TYPE =
+        MethodType.methodType(void.class, Environment.class, Object[].class, double[].class, Object[].class);
+
+    // the JVM locals of those parameters
+    private static final int GLOBALS = 0;
+    private static final int CONSTANTS = 1;
+    private static final int DOUBLE_FRAME = 2;
+    private static final int OBJECT_FRAME = 3;
+
+    /* the opcodes used */
+    private static final int ACONST_NULL = 1;
+    private static final int ICONST_0 = 3;
+    private static final int ICONST_1 = 4;
+    private static final int BIPUSH = 16;
+    private static final int SIPUSH = 17;
+    private static final int LDC_W = 19;
+    private static final int LDC2_W = 20;
+    private static final int DLOAD = 24;
+    private static final int ALOAD = 25;
+    private static final int ALOAD_0 = 42;
+    private static final int DALOAD = 49;
+    private static final int AALOAD = 50;
+    private static final int DSTORE = 57;
+    private static final int ASTORE = 58;
+    private static final int POP = 87;
+    private static final int POP2 = 88;
+    private static final int DUP = 89;
+    private static final int DUP_X2 = 91;
+    private static final int DUP2 = 92;
+    private static final int SWAP = 95;
+    private static final int DADD = 99;
+    private static final int DSUB = 103;
+    private static final int DMUL = 107;
+    private static final int DDIV = 111;
+    private static final int DNEG = 119;
+    private static final int IXOR = 130;
+    private static final int DCMPL = 151;
+    private static final int DCMPG = 152;
+    private static final int IFEQ = 153;
+    private static final int IFNE = 154;
+    private static final int IFLT = 155;
+    private static final int IFGE = 156;
+    private static final int IFGT = 157;
+    private static final int IFLE = 158;
+    private static final int GOTO = 167;
+    private static final int RETURN = 177;
+    private static final int GETFIELD = 180;
+    private static final int PUTFIELD = 181;
+    private static final int INVOKEVIRTUAL = 182;
+    private static final int INVOKESTATIC = 184;
+    private static final int CHECKCAST = 192;
+    private static final int WIDE = 196;
+    private static final int IFNULL = 198;
+
+    // the most code the prologue takes to look up a cell
+    private static final int CELL_LOOKUP = 16;
+
+    // thrown when a method outgrows MAX_CODE, the statement is then split or left to the ClosureCompiler
+    private static final class TooLarge extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooLarge() {
+            super(null, null, false, false);
+        }
+    }
+    private static final TooLarge TOO_LARGE = new TooLarge();
+
+    // kept across interpret() calls like the Interpreter's globals, for the statement at a time modes
+    private final Environment globals = new Environment();
+    private final Resolver resolver = new Resolver();
+
+    // what print statements write to, the generated code gets it from the constants
+    private final OutputSink out;
+    private final ClosureCompiler fallback;
+
+    /* the script being compiled */
+    private List<Object> constants;
+    private List<ClassFileWriter> classes;
+    private ClassFileWriter writer;
+
+    // the class of every method, by the number in its name
+    private List<Integer> methodClasses;
+
+    /* the top level statement being compiled */
+    private Analysis analysis;
+    private List<Integer> statementMethods;
+    private int doubleFrameSize;
+    private int objectFrameSize;
+
+    /* the method being compiled, the code has room for the final return */
+    private final byte[] code = new byte[MAX_CODE + 1];
+    private int length;
+    private int stack;
+    private int maxStack;
+    private int nextLocal;
+    // the code of the method can grow up to this, less the room kept for the prologue
+    private int limit;
+
+    // the JVM local of the cell of each global variable the method uses, by its symbol, and the names to look them up
+    private SymbolMap cells;
+    private List<Token> cellNames;
+
+    // a compiled script, the methods or the fallback of each top level statement
+    static final class Script {
+        final TopLevel[] statements;
+        final MethodHandle[] methods;
+        final Object[] constants;
+
+        Script(TopLevel[] _statements, MethodHandle[] _methods, Object[] _constants) {
+            this.statements = _statements;
+            this.methods = _methods;
+            this.constants = _constants;
+        }
+    }
+
+    private static final class TopLevel {
+        int[] methods;
+        int doubleFrameSize;
+        int objectFrameSize;
+        ClosureCompiler.Action fallback;
+    }
+
+    public JitCompiler() {
+        this(new OutputSink(System.out, OutputSink.FlushPolicy.WHEN_FULL));
+    }
+
+    JitCompiler(OutputSink _out) {
+        this.out = _out;
+        this.fallback = new ClosureCompiler(globals, _out);
+    }
+
+    public void interpret(List<Stmt> statements) {
+        Script script = compile(statements);
+        try {
+            run(script);
+        }
+        catch (RuntimeError error) {
+            // what the script printed comes before the error
+            out.flush();
+            Jlox.runtimeError(error);
+        }
+        finally {
+            out.flush();
+        }
+    }
+
+    void run(Script script) {
+        for (TopLevel statement : script.statements) {
+            if (statement.fallback != null) {
+                fallback.run(statement.fallback);
+                continue;
+            }
+
+            double[] doubleFrame = new double[statement.doubleFrameSize];
+            Object[] objectFrame = new Object[statement.objectFrameSize];
+            for (int method : statement.methods) {
+                try {
+                    script.methods[method].invokeExact(globals, script.constants, doubleFrame, objectFrame);
+                }
+                catch (RuntimeException | Error e) {
+                    throw e;
+                }
+                catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles top level statements, running the Resolver on them first
+     */
+    Script compile(List<Stmt> statements) {
+        constants = new ArrayList<>();
+        classes = new ArrayList<>();
+        writer = null;
+        methodClasses = new ArrayList<>();
+
+        TopLevel[] compiled = new TopLevel[statements.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            Stmt statement = statements.get(i);
+            resolver.resolveTopLevel(statement);
+            compiled[i] = topLevel(statement);
+        }
+
+        MethodHandle[] methods = new MethodHandle[methodClasses.size()];
+        try {
+            List<MethodHandles.Lookup> lookups = new ArrayList<>();
+            for (ClassFileWriter generated : classes) {
+                lookups.add(MethodHandles.lookup().defineHiddenClass(generated.toByteArray(), true));
+            }
+            for (int i = 0; i < methods.length; i++) {
+                MethodHandles.Lookup lookup = lookups.get(methodClasses.get(i));
+                methods[i] = lookup.findStatic(lookup.lookupClass(), "s" + i, METHOD_TYPE);
+            }
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Script script = new Script(compiled, methods, constants.toArray());
+        constants = null;
+        classes = null;
+        writer = null;
+        analysis = null;
+        return script;
+    }
+
+    private TopLevel topLevel(Stmt statement) {
+        TopLevel compiled = new TopLevel();
+        analysis = new Analysis();
+        analysis.analyse(statement);
+        if (analysis.calls * 100 > analysis.operations * MAX_CALL_PERCENT) {
+            // each of those calls costs more from interpreted code than the lambdas of the ClosureCompiler do
+            compiled.fallback = fallback.compile(List.of(statement));
+            return compiled;
+        }
+        statementMethods = new ArrayList<>();
+        doubleFrameSize = 0;
+        objectFrameSize = 0;
+
+        try {
+            beginMethod();
+            try {
+                statement(statement);
+            }
+            catch (TooLarge e) {
+                if (!(statement instanceof BlockStmt)) throw e;
+                analysis.scopes.clear();
+                beginMethod();
+                framedBlock((BlockStmt)statement);
+            }
+            endMethod();
+        }
+        catch (TooLarge e) {
+            // a single statement or expression that does not fit in a method, the methods done so far stay unused
+            compiled.fallback = fallback.compile(List.of(statement));
+            return compiled;
+        }
+
+        compiled.methods = statementMethods.stream().mapToInt(Integer::intValue).toArray();
+        compiled.doubleFrameSize = doubleFrameSize;
+        compiled.objectFrameSize = objectFrameSize;
+        return compiled;
+    }
+
+    // a block too large for the method it starts in: its variables go to the frames, and its statements fill as many
+    // methods as they need, blocks among them that do not fit in a method of their own are split in turn
+    private void framedBlock(BlockStmt blockStatement) {
+        Local[] scope = analysis.blockLocals.get(blockStatement);
+        for (Local local : scope) {
+            local.framed = true;
+            local.index = local.isDouble ? doubleFrameSize++ : objectFrameSize++;
+        }
+
+        // a block without variables has no scope, see Resolver
+        if (scope.length > 0) analysis.scopes.add(scope);
+        int depth = analysis.scopes.size();
+        for (Stmt statement : blockStatement.blockStatementList) {
+            int mark = length;
+            try {
+                statement(statement);
+                continue;
+            }
+            catch (TooLarge e) {
+                // dropping what the statement got to emit
+                length = mark;
+                stack = 0;
+                analysis.scopes.subList(depth, analysis.scopes.size()).clear();
+            }
+
+            if (mark > 0) {
+                endMethod();
+                beginMethod();
+                try {
+                    statement(statement);
+                    continue;
+                }
+                catch (TooLarge e) {
+                    length = 0;
+                    stack = 0;
+                    analysis.scopes.subList(depth, analysis.scopes.size()).clear();
+                }
+            }
+
+            if (!(statement instanceof BlockStmt)) throw TOO_LARGE;
+            framedBlock((BlockStmt)statement);
+        }
+        if (scope.length > 0) analysis.scopes.remove(analysis.scopes.size() - 1);
+    }
+
+    private void beginMethod() {
+        if (writer == null || writer.constantCount() > MAX_CONSTANTS) {
+            writer = new ClassFileWriter(CLASS_NAME);
+            classes.add(writer);
+        }
+
+        length = 0;
+        stack = 0;
+        maxStack = 0;
+        nextLocal = OBJECT_FRAME + 1;
+        limit = MAX_CODE;
+        cells = new SymbolMap();
+        cellNames = new ArrayList<>();
+    }
+
+    private void endMethod() {
+        code[length++] = (byte)RETURN;
+        prologue();
+
+        int method = methodClasses.size();
+        methodClasses.add(classes.size() - 1);
+        writer.method("s" + method, DESCRIPTOR, code, length, maxStack, nextLocal);
+        statementMethods.add(method);
+    }
+
+    // puts the lookups of the cells the method uses in front of its code, which can move since jumps are relative.
+    // A global that is not defined yet gets a null cell, and the code reports it when it gets to it: a variable of a
+    // top level statement is defined once the statement is done, so no cell shows up while a method runs
+    private void prologue() {
+        if (cellNames.isEmpty()) return;
+
+        byte[] body = Arrays.copyOf(code, length);
+        length = 0;
+        stack = 0;
+        limit = code.length;
+        for (Token name : cellNames) {
+            op(ALOAD_0 + GLOBALS, 1);
+            token(name);
+            invokeVirtual(ENVIRONMENT, "global", "(" + TOKEN_TYPE + ")L" + GLOBAL + ";", -1);
+            local(ASTORE, cells.get(name.symbol), -1);
+        }
+        System.arraycopy(body, 0, code, length, body.length);
+        length += body.length;
+    }
+
+    // the JVM local of the cell of the global, kept room for in the prologue
+    private int cell(Token name) {
+        int cell = cells.get(name.symbol);
+        if (cell != SymbolMap.MISSING) return cell;
+
+        if (length > limit - CELL_LOOKUP) throw TOO_LARGE;
+        limit -= CELL_LOOKUP;
+        cell = nextLocal++;
+        cells.put(name.symbol, cell);
+        cellNames.add(name);
+        return cell;
+    }
+
+    private void statement(Stmt statement) {
+        statement.accept(this);
+    }
+
+    // leaves the value of the expression on the stack and returns its kind
+    private int expression(Expr expression) {
+        if (expression == null) {
+            // an expression the parser could not make sense of, the tree walker fails on it when it gets there
+            invokeStatic(SELF, "missing", "()" + OBJECT_TYPE, 1);
+            return OBJECT;
+        }
+        return expression.accept(this);
+    }
+
+    @Override
+    public Void visitExprStmt(Stmt.ExprStmt expressionStatement) {
+        pop(expression(expressionStatement.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.PrintStmt printStatement) {
+        constant(out);
+        checkCast(SINK);
+
+        // a double is printed without boxing it
+        int kind = expression(printStatement.expression);
+        if (kind == DOUBLE) {
+            invokeVirtual(SINK, "printLine", "(D)V", -3);
+        }
+        else {
+            box(kind);
+            invokeVirtual(SINK, "printLine", "(" + OBJECT_TYPE + ")V", -2);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarDecStmt(VarDecStmt varDecStatement) {
+        int kind = OBJECT;
+        if (varDecStatement.initialiser != null) {
+            kind = expression(varDecStatement.initialiser);
+        }
+        else {
+            op(ACONST_NULL, 1);
+        }
+
+        if (varDecStatement.slot == Resolver.GLOBAL) {
+            box(kind);
+            op(ALOAD_0 + GLOBALS, 1);
+            token(varDecStatement.name);
+            invokeStatic(SELF, "defineGlobal", "(" + OBJECT_TYPE + "Lcom/jlox/Environment;" + TOKEN_TYPE + ")V", -3);
+            return null;
+        }
+
+        Local local = analysis.local(0, varDecStatement.slot);
+        store(local, kind);
+        pop(local.isDouble ? DOUBLE : OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(BlockStmt blockStatement) {
+        Local[] scope = analysis.blockLocals.get(blockStatement);
+        for (Local local : scope) {
+            local.framed = false;
+            local.index = nextLocal;
+            if (local.isDouble) {
+                nextLocal += 2;
+            }
+            else {
+                // like the slots of a new frame, so that the verifier sees them assigned
+                nextLocal += 1;
+                op(ACONST_NULL, 1);
+                local(ASTORE, local.index, -1);
+            }
+        }
+
+        // a block without variables has no scope, see Resolver
+        if (scope.length > 0) analysis.scopes.add(scope);
+        for (Stmt statement : blockStatement.blockStatementList) {
+            statement(statement);
+        }
+        if (scope.length > 0) analysis.scopes.remove(analysis.scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(IfStmt ifStatement) {
+        int elseJump = truthyJump(expression(ifStatement.conditional));
+
+        statement(ifStatement.thenStatement);
+
+        if (ifStatement.elseStatemeStmt == null) {
+            patch(elseJump);
+            return null;
+        }
+
+        int endJump = jump(GOTO, 0);
+        patch(elseJump);
+        statement(ifStatement.elseStatemeStmt);
+        patch(endJump);
+        return null;
+    }
+
+    // pops the condition and jumps when it is falsy
+    private int truthyJump(int kind) {
+        if (kind == DOUBLE) {
+            // a number is always truthy, only its side effects count
+            op(POP2, -2);
+            op(ICONST_1, 1);
+        }
+        else if (kind == OBJECT) {
+            invokeStatic("com/jlox/Interpreter", "isTruthy", "(" + OBJECT_TYPE + ")Z", 0);
+        }
+        return jump(IFEQ, -1);
+    }
+
+    @Override
+    public Integer visitBinary(Expr.Binary expression) {
+        int left = expression(expression.left);
+        int right = expression(expression.right);
+        boolean numbers = left == DOUBLE && right == DOUBLE;
+
+        // the operands of the helper: a number next to an object is passed unboxed to the operators that have helpers
+        // for it, everything else is boxed
+        String operands = OBJECT_TYPE + OBJECT_TYPE;
+        int words = 2;
+        if (mixed(left, right) && takesNumbers(expression.operator.tokenType)) {
+            operands = left == DOUBLE ? "D" + OBJECT_TYPE : OBJECT_TYPE + "D";
+            words = 3;
+        }
+        else if (!numbers) {
+            boxBoth(left, right);
+        }
+
+        switch (expression.operator.tokenType) {
+            case TokenType.PLUS:
+                if (numbers) {
+                    op(DADD, -2);
+                    return DOUBLE;
+                }
+                token(expression.operator);
+                if (words == 3) {
+                    // a number added to anything else is a number or an error
+                    invokeStatic(SELF, "add", "(" + operands + TOKEN_TYPE + ")D", -2);
+                    return DOUBLE;
+                }
+                invokeStatic(SELF, "add", "(" + operands + TOKEN_TYPE + ")" + OBJECT_TYPE, -2);
+                return OBJECT;
+            case TokenType.MINUS:
+                return arithmetic(numbers, operands, words, DSUB, "subtract", expression.operator);
+            case TokenType.STAR:
+                return arithmetic(numbers, operands, words, DMUL, "multiply", expression.operator);
+            case TokenType.SLASH:
+                return arithmetic(numbers, operands, words, DDIV, "divide", expression.operator);
+
+            // like the Java operators, false when either operand is NaN
+            case TokenType.GREATER:
+                return comparison(numbers, operands, words, DCMPL, IFLE, "greater");
+            case TokenType.GREATER_EQUALS:
+                return comparison(numbers, operands, words, DCMPL, IFLT, "greaterEquals");
+            case TokenType.LESSER:
+                return comparison(numbers, operands, words, DCMPG, IFGE, "lesser");
+            case TokenType.LESSER_EQUALS:
+                return comparison(numbers, operands, words, DCMPG, IFGT, "lesserEquals");
+
+            case TokenType.EQUALS_EQUALS:
+                return equality(numbers);
+            case TokenType.BANG_EQUALS:
+                equality(numbers);
+                op(ICONST_1, 1);
+                op(IXOR, -1);
+                return BOOLEAN;
+            default:
+                pop(numbers ? DOUBLE : OBJECT);
+                pop(numbers ? DOUBLE : OBJECT);
+                op(ACONST_NULL, 1);
+                return OBJECT;
+        }
+    }
+
+    // boxes the two operands on the stack, the right one on top
+    private void boxBoth(int left, int right) {
+        box(right);
+        if (left == DOUBLE) {
+            // bring the double up: right, left
+            op(DUP_X2, 1);
+            op(POP, -1);
+            box(left);
+            op(SWAP, 0);
+        }
+        else if (left == BOOLEAN) {
+            op(SWAP, 0);
+            box(left);
+            op(SWAP, 0);
+        }
+    }
+
+    // a double and an OBJECT, which the helpers of the operators that take numbers get without boxing the double
+    private static boolean mixed(int left, int right) {
+        return left == DOUBLE && right == OBJECT || left == OBJECT && right == DOUBLE;
+    }
+
+    private static boolean takesNumbers(TokenType operator) {
+        switch (operator) {
+            case TokenType.PLUS:
+            case TokenType.MINUS:
+            case TokenType.STAR:
+            case TokenType.SLASH:
+            case TokenType.GREATER:
+            case TokenType.GREATER_EQUALS:
+            case TokenType.LESSER:
+            case TokenType.LESSER_EQUALS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // the helper takes the operands, of the words given, and the operator token
+    private int arithmetic(boolean numbers, String operands, int words, int opcode, String helper, Token operator) {
+        if (numbers) {
+            op(opcode, -2);
+        }
+        else {
+            token(operator);
+            invokeStatic(SELF, helper, "(" + operands + TOKEN_TYPE + ")D", 1 - words);
+        }
+        return DOUBLE;
+    }
+
+    private int comparison(boolean numbers, String operands, int words, int compare, int whenFalse, String helper) {
+        if (numbers) {
+            op(compare, -3);
+            booleanOf(whenFalse);
+        }
+        else {
+            invokeStatic(SELF, helper, "(" + operands + ")Z", 1 - words);
+        }
+        return BOOLEAN;
+    }
+
+    // Double.compare() tells numbers apart like Double.equals() in isEqual() does
+    private int equality(boolean numbers) {
+        if (numbers) {
+            invokeStatic("java/lang/Double", "compare", "(DD)I", -3);
+            booleanOf(IFNE);
+        }
+        else {
+            invokeStatic("com/jlox/Interpreter", "isEqual", "(" + OBJECT_TYPE + OBJECT_TYPE + ")Z", -1);
+        }
+        return BOOLEAN;
+    }
+
+    // turns the int on the stack into 0 when the jump is taken, 1 otherwise
+    private void booleanOf(int whenFalse) {
+        int falseJump = jump(whenFalse, -1);
+        op(ICONST_1, 1);
+        int endJump = jump(GOTO, 0);
+        patch(falseJump);
+        stack--;
+        op(ICONST_0, 1);
+        patch(endJump);
+    }
+
+    @Override
+    public Integer visitUnary(Expr.Unary expression) {
+        int operand = expression(expression.expression);
+
+        switch (expression.operator.tokenType) {
+            case TokenType.MINUS:
+                if (operand == DOUBLE) {
+                    op(DNEG, 0);
+                }
+                else {
+                    box(operand);
+                    token(expression.operator);
+                    invokeStatic(SELF, "negate", "(" + OBJECT_TYPE + TOKEN_TYPE + ")D", 0);
+                }
+                return DOUBLE;
+            case TokenType.BANG:
+                if (operand == DOUBLE) {
+                    op(POP2, -2);
+                    op(ICONST_0, 1);
+                    return BOOLEAN;
+                }
+                if (operand == OBJECT) {
+                    invokeStatic("com/jlox/Interpreter", "isTruthy", "(" + OBJECT_TYPE + ")Z", 0);
+                }
+                op(ICONST_1, 1);
+                op(IXOR, -1);
+                return BOOLEAN;
+            default:
+                pop(operand);
+                op(ACONST_NULL, 1);
+                return OBJECT;
+        }
+    }
+
+    @Override
+    public Integer visitGrouping(Expr.Grouping expression) {
+        return expression(expression.expression);
+    }
+
+    @Override
+    public Integer visitLiteral(Expr.Literal expression) {
+        Object value = expression.value;
+        if (value instanceof Double) {
+            op(LDC2_W, 2);
+            u2(writer.doubleConstant((double)value));
+            return DOUBLE;
+        }
+        if (value instanceof Boolean) {
+            op((boolean)value ? ICONST_1 : ICONST_0, 1);
+            return BOOLEAN;
+        }
+
+        if (value == null) {
+            op(ACONST_NULL, 1);
+        }
+        else {
+            constant(value);
+        }
+        return OBJECT;
+    }
+
+    @Override
+    public Integer visitTernary(Expr.Ternary expression) {
+        // the condition has to be a boolean, as in the Interpreter
+        int conditional = expression(expression.conditional);
+        if (conditional != BOOLEAN) {
+            box(conditional);
+            checkCast("java/lang/Boolean");
+            invokeVirtual("java/lang/Boolean", "booleanValue", "()Z", 0);
+        }
+        int falseJump = jump(IFEQ, -1);
+
+        // both branches have to leave the same kind of value
+        int result = analysis.kind(expression);
+        int trueBranch = expression(expression.trueBranch);
+        if (result == OBJECT) box(trueBranch);
+        int endJump = jump(GOTO, 0);
+
+        // only one of the branches pushes its value
+        stack -= result == DOUBLE ? 2 : 1;
+        patch(falseJump);
+        int falseBranch = expression(expression.falseBranch);
+        if (result == OBJECT) box(falseBranch);
+        patch(endJump);
+        return result;
+    }
+
+    @Override
+    public Integer visitVariable(Variable expression) {
+        if (expression.depth == Resolver.GLOBAL) {
+            int cell = cell(expression.name);
+            local(ALOAD, cell, 1);
+            int undefined = jump(IFNULL, -1);
+            local(ALOAD, cell, 1);
+            op(GETFIELD, 0);
+            u2(writer.fieldRef(GLOBAL, "value", OBJECT_TYPE));
+            int endJump = jump(GOTO, 0);
+
+            // Environment.get() reports the variable, with this token
+            stack--;
+            patch(undefined);
+            op(ALOAD_0 + GLOBALS, 1);
+            token(expression.name);
+            invokeVirtual(ENVIRONMENT, "get", "(" + TOKEN_TYPE + ")" + OBJECT_TYPE, -1);
+            patch(endJump);
+            return OBJECT;
+        }
+
+        Local local = analysis.local(expression.depth, expression.slot);
+        load(local);
+        return local.isDouble ? DOUBLE : OBJECT;
+    }
+
+    @Override
+    public Integer visitAssignment(Assignment assignment) {
+        int kind = expression(assignment.expression);
+
+        if (assignment.depth == Resolver.GLOBAL) {
+            box(kind);
+            int cell = cell(assignment.name);
+            local(ALOAD, cell, 1);
+            int undefined = jump(IFNULL, -1);
+            op(DUP, 1);
+            local(ALOAD, cell, 1);
+            op(SWAP, 0);
+            op(PUTFIELD, -2);
+            u2(writer.fieldRef(GLOBAL, "value", OBJECT_TYPE));
+            int endJump = jump(GOTO, 0);
+
+            // Environment.assign() reports the variable
+            patch(undefined);
+            op(ALOAD_0 + GLOBALS, 1);
+            token(assignment.name);
+            invokeStatic(SELF, "assignGlobal",
+                "(" + OBJECT_TYPE + "Lcom/jlox/Environment;" + TOKEN_TYPE + ")" + OBJECT_TYPE, -2);
+            patch(endJump);
+            return OBJECT;
+        }
+
+        Local local = analysis.local(assignment.depth, assignment.slot);
+        store(local, kind);
+        return local.isDouble ? DOUBLE : OBJECT;
+    }
+
+    /* variables, store() leaves the value on the stack */
+
+    private void load(Local local) {
+        if (!local.framed) {
+            local(local.isDouble ? DLOAD : ALOAD, local.index, local.isDouble ? 2 : 1);
+        }
+        else if (local.isDouble) {
+            op(ALOAD_0 + DOUBLE_FRAME, 1);
+            pushInt(local.index);
+            op(DALOAD, 0);
+        }
+        else {
+            op(ALOAD_0 + OBJECT_FRAME, 1);
+            pushInt(local.index);
+            op(AALOAD, -1);
+        }
+    }
+
+    // the value on the stack has the kind given, a double variable only ever gets doubles (see Analysis)
+    private void store(Local local, int kind) {
+        if (local.isDouble && kind != DOUBLE) {
+            throw new IllegalStateException("a double variable defined with an expression of kind " + kind);
+        }
+        if (!local.isDouble) box(kind);
+
+        if (!local.framed) {
+            op(local.isDouble ? DUP2 : DUP, local.isDouble ? 2 : 1);
+            local(local.isDouble ? DSTORE : ASTORE, local.index, local.isDouble ? -2 : -1);
+        }
+        else if (local.isDouble) {
+            op(ALOAD_0 + DOUBLE_FRAME, 1);
+            pushInt(local.index);
+            invokeStatic(SELF, "storeDouble", "(D[DI)D", -2);
+        }
+        else {
+            op(ALOAD_0 + OBJECT_FRAME, 1);
+            pushInt(local.index);
+            invokeStatic(SELF, "storeObject", "(" + OBJECT_TYPE + "[" + OBJECT_TYPE + "I)" + OBJECT_TYPE, -2);
+        }
+    }
+
+    /* emitting code, every instruction says how it changes the depth of the stack */
+
+    private void op(int opcode, int effect) {
+        u1(opcode);
+        stack += effect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void u1(int value) {
+        if (length == limit) throw TOO_LARGE;
+        code[length++] = (byte)value;
+    }
+
+    private void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    private void local(int opcode, int index, int effect) {
+        if (index > 255) {
+            u1(WIDE);
+            op(opcode, effect);
+            u2(index);
+        }
+        else {
+            op(opcode, effect);
+            u1(index);
+        }
+    }
+
+    private void pushInt(int value) {
+        if (value <= 5) {
+            op(ICONST_0 + value, 1);
+        }
+        else if (value <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            u1(value);
+        }
+        else if (value <= Short.MAX_VALUE) {
+            op(SIPUSH, 1);
+            u2(value);
+        }
+        else {
+            op(LDC_W, 1);
+            u2(writer.integer(value));
+        }
+    }
+
+    // pushes a value of the constants array
+    private void constant(Object value) {
+        int index = constants.size();
+        constants.add(value);
+        op(ALOAD_0 + CONSTANTS, 1);
+        pushInt(index);
+        op(AALOAD, -1);
+    }
+
+    // pushes the Token, for the errors of the operation
+    private void token(Token token) {
+        constant(token);
+        checkCast("com/jlox/Token");
+    }
+
+    private void checkCast(String type) {
+        op(CHECKCAST, 0);
+        u2(writer.classRef(type));
+    }
+
+    private void invokeStatic(String owner, String name, String descriptor, int effect) {
+        op(INVOKESTATIC, effect);
+        u2(writer.methodRef(owner, name, descriptor));
+    }
+
+    private void invokeVirtual(String owner, String name, String descriptor, int effect) {
+        op(INVOKEVIRTUAL, effect);
+        u2(writer.methodRef(owner, name, descriptor));
+    }
+
+    // emits a jump and returns where it is, see patch()
+    private int jump(int opcode, int effect) {
+        int at = length;
+        op(opcode, effect);
+        u2(0);
+        return at;
+    }
+
+    // points the jump at the next instruction, offsets are relative to the jump instruction
+    private void patch(int at) {
+        int offset = length - at;
+        code[at + 1] = (byte)(offset >> 8);
+        code[at + 2] = (byte)offset;
+    }
+
+    private void box(int kind) {
+        if (kind == DOUBLE) {
+            invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+        }
+        else if (kind == BOOLEAN) {
+            invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", 0);
+        }
+    }
+
+    private void pop(int kind) {
+        if (kind == DOUBLE) op(POP2, -2);
+        else op(POP, -1);
+    }
+
+    // a block variable, a JVM local or a slot of one of the frames (the ClosureCompiler only uses isDouble)
+    static final class Local {
+        // until a definition that is not a DOUBLE expression shows up
+        boolean isDouble = true;
+
+        boolean framed;
+        int index;
+    }
+
+    // Finds the variables of the blocks of a top level statement and which of them are doubles
+    // The kind of an expression depends on the kinds of the variables it reads, and the kind of a variable on the kinds
+    // of the expressions it is defined with, so the variables start out as doubles and the statement is gone over
+    // until no more of them are demoted. Variables are defined before they are read (there are no loops), so a double
+    // variable is always assigned when it is read. The ClosureCompiler keeps the same doubles unboxed
+    static final class Analysis implements Expr.Visitor<Integer>, Stmt.Visitor<Void> {
+        final Map<BlockStmt, Local[]> blockLocals = new IdentityHashMap<>();
+
+        // the variables of the enclosing blocks, innermost last, also kept by the code generation and ClosureCompiler
+        final List<Local[]> scopes = new ArrayList<>();
+
+        private boolean changed;
+
+        // the operators and assignments of the statement, and those of them that call a helper or box a value
+        int operations;
+        int calls;
+
+        void analyse(Stmt statement) {
+            do {
+                changed = false;
+                operations = 0;
+                calls = 0;
+                statement.accept(this);
+            } while (changed);
+        }
+
+        Local local(int depth, int slot) {
+            return scopes.get(scopes.size() - 1 - depth)[slot];
+        }
+
+        int kind(Expr expression) {
+            return expression == null ? OBJECT : expression.accept(this);
+        }
+
+        private void define(Local local, int kind) {
+            if (local.isDouble && kind != DOUBLE) {
+                local.isDouble = false;
+                changed = true;
+            }
+        }
+
+        @Override
+        public Void visitBlockStmt(BlockStmt blockStatement) {
+            Local[] scope = blockLocals.get(blockStatement);
+            if (scope == null) {
+                scope = new Local[blockStatement.slotCount];
+                for (int i = 0; i < scope.length; i++) {
+                    scope[i] = new Local();
+                }
+                blockLocals.put(blockStatement, scope);
+            }
+
+            if (scope.length > 0) scopes.add(scope);
+            for (Stmt statement : blockStatement.blockStatementList) {
+                statement.accept(this);
+            }
+            if (scope.length > 0) scopes.remove(scopes.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitVarDecStmt(VarDecStmt varDecStatement) {
+            int kind = kind(varDecStatement.initialiser);
+            if (varDecStatement.slot != Resolver.GLOBAL) define(local(0, varDecStatement.slot), kind);
+            return null;
+        }
+
+        @Override
+        public Void visitExprStmt(Stmt.ExprStmt expressionStatement) {
+            kind(expressionStatement.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.PrintStmt printStatement) {
+            kind(printStatement.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(IfStmt ifStatement) {
+            kind(ifStatement.conditional);
+            ifStatement.thenStatement.accept(this);
+            if (ifStatement.elseStatemeStmt != null) ifStatement.elseStatemeStmt.accept(this);
+            return null;
+        }
+
+        @Override
+        public Integer visitVariable(Variable expression) {
+            if (expression.depth == Resolver.GLOBAL) return OBJECT;
+            return local(expression.depth, expression.slot).isDouble ? DOUBLE : OBJECT;
+        }
+
+        @Override
+        public Integer visitAssignment(Assignment assignment) {
+            int kind = kind(assignment.expression);
+            operations++;
+            if (assignment.depth == Resolver.GLOBAL) {
+                if (kind != OBJECT) calls++;
+                return OBJECT;
+            }
+
+            Local local = local(assignment.depth, assignment.slot);
+            define(local, kind);
+            if (!local.isDouble && kind != OBJECT) calls++;
+            return local.isDouble ? DOUBLE : OBJECT;
+        }
+
+        @Override
+        public Integer visitBinary(Expr.Binary expression) {
+            int left = kind(expression.left);
+            int right = kind(expression.right);
+            operations++;
+            if (left != DOUBLE || right != DOUBLE) calls++;
+
+            switch (expression.operator.tokenType) {
+                case TokenType.PLUS:
+                    return left == DOUBLE && right == DOUBLE || mixed(left, right) ? DOUBLE : OBJECT;
+                case TokenType.MINUS:
+                case TokenType.STAR:
+                case TokenType.SLASH:
+                    return DOUBLE;
+                case TokenType.GREATER:
+                case TokenType.GREATER_EQUALS:
+                case TokenType.LESSER:
+                case TokenType.LESSER_EQUALS:
+                case TokenType.EQUALS_EQUALS:
+                case TokenType.BANG_EQUALS:
+                    return BOOLEAN;
+                default:
+                    return OBJECT;
+            }
+        }
+
+        @Override
+        public Integer visitUnary(Expr.Unary expression) {
+            int operand = kind(expression.expression);
+            operations++;
+
+            switch (expression.operator.tokenType) {
+                case TokenType.MINUS:
+                    if (operand != DOUBLE) calls++;
+                    return DOUBLE;
+                case TokenType.BANG:
+                    if (operand == OBJECT) calls++;
+                    return BOOLEAN;
+                default:
+                    return OBJECT;
+            }
+        }
+
+        @Override
+        public Integer visitGrouping(Expr.Grouping expression) {
+            return kind(expression.expression);
+        }
+
+        @Override
+        public Integer visitLiteral(Expr.Literal expression) {
+            if (expression.value instanceof Double) return DOUBLE;
+            if (expression.value instanceof Boolean) return BOOLEAN;
+            return OBJECT;
+        }
+
+        @Override
+        public Integer visitTernary(Expr.Ternary expression) {
+            kind(expression.conditional);
+            int trueBranch = kind(expression.trueBranch);
+            int falseBranch = kind(expression.falseBranch);
+            return trueBranch == falseBranch ? trueBranch : OBJECT;
+        }
+    }
+
+    /* what the generated code calls, for everything but operations on doubles */
+
+    static void defineGlobal(Object value, Environment globals, Token name) {
+        globals.define(name, value);
+    }
+
+    static Object assignGlobal(Object value, Environment globals, Token name) {
+        globals.assign(name, value);
+        return value;
+    }
+
+    static double storeDouble(double value, double[] frame, int slot) {
+        frame[slot] = value;
+        return value;
+    }
+
+    static Object storeObject(Object value, Object[] frame, int slot) {
+        frame[slot] = value;
+        return value;
+    }
+
+    static Object missing() {
+        throw new NullPointerException("missing expression");
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) return (double)left + (double)right;
+        if (left instanceof CharSequence && right instanceof CharSequence) {
+            return Rope.concat((CharSequence)left, (CharSequence)right);
+        }
+        throw new RuntimeError(operator, "Operands must be two strings or two numbers");
+    }
+
+    static double add(Object left, double right, Token operator) {
+        if (left instanceof Double) return (double)left + right;
+        throw new RuntimeError(operator, "Operands must be two strings or two numbers");
+    }
+
+    static double add(double left, Object right, Token operator) {
+        if (right instanceof Double) return left + (double)right;
+        throw new RuntimeError(operator, "Operands must be two strings or two numbers");
+    }
+
+    static double subtract(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static double multiply(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static double divide(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left / (double)right;
+    }
+
+    static double negate(Object operand, Token operator) {
+        if (operand instanceof Double) return -(double)operand;
+        throw new RuntimeError(operator, "Operand must be a number");
+    }
+
+    static double subtract(Object left, double right, Token operator) {
+        checkNumberOperand(operator, left);
+        return (double)left - right;
+    }
+
+    static double subtract(double left, Object right, Token operator) {
+        checkNumberOperand(operator, right);
+        return left - (double)right;
+    }
+
+    static double multiply(Object left, double right, Token operator) {
+        checkNumberOperand(operator, left);
+        return (double)left * right;
+    }
+
+    static double multiply(double left, Object right, Token operator) {
+        checkNumberOperand(operator, right);
+        return left * (double)right;
+    }
+
+    static double divide(Object left, double right, Token operator) {
+        checkNumberOperand(operator, left);
+        return (double)left / right;
+    }
+
+    static double divide(double left, Object right, Token operator) {
+        checkNumberOperand(operator, right);
+        return left / (double)right;
+    }
+
+    // like the Interpreter, comparisons just cast their operands
+    static boolean greater(Object left, Object right) {
+        return (double)left > (double)right;
+    }
+
+    static boolean greaterEquals(Object left, Object right) {
+        return (double)left >= (double)right;
+    }
+
+    static boolean lesser(Object left, Object right) {
+        return (double)left < (double)right;
+    }
+
+    static boolean lesserEquals(Object left, Object right) {
+        return (double)left <= (double)right;
+    }
+
+    static boolean greater(Object left, double right) {
+        return (double)left > right;
+    }
+
+    static boolean greater(double left, Object right) {
+        return left > (double)right;
+    }
+
+    static boolean greaterEquals(Object left, double right) {
+        return (double)left >= right;
+    }
+
+    static boolean greaterEquals(double left, Object right) {
+        return left >= (double)right;
+    }
+
+    static boolean lesser(Object left, double right) {
+        return (double)left < right;
+    }
+
+    static boolean lesser(double left, Object right) {
+        return left < (double)right;
+    }
+
+    static boolean lesserEquals(Object left, double right) {
+        return (double)left <= right;
+    }
+
+    static boolean lesserEquals(double left, Object right) {
+        return left <= (double)right;
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operand must be a number");
+    }
+
+    private static void checkNumberOperand(Token operator, Object operand) {
+        if (operand instanceof Double) return;
+        throw new RuntimeError(operator, "Operand must be a number");
+    }
+}
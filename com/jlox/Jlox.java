@@ -2,27 +2,71 @@ package com.jlox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.Reader;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class Jlox {
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
-    private static void run(String source) {
-        Lexer lexer = new Lexer(source);
-        List<Token> tokens = lexer.scanTokens();
+    // how often --watch looks at the modification time of the script
+    private static final long WATCH_INTERVAL_MS = 200;
+
+    // what runs the statements: the tree walking Interpreter, or the bytecode VM (--vm), the ClosureCompiler
+    // (--closures) or the experimental JitCompiler (--jit) instead
+    private static Supplier<Consumer<List<Stmt>>> engine = () -> new Interpreter(output())::interpret;
+
+    // when the engines write out what the scripts print, every line for the modes where someone reads along
+    private static OutputSink.FlushPolicy flushPolicy = OutputSink.FlushPolicy.WHEN_FULL;
+
+    private static OutputSink output() {
+        return new OutputSink(System.out, flushPolicy);
+    }
+
+    /**
+     * A new execution engine, with no variables defined yet. The statements it is given are constant folded first,
+     * see Optimizer
+     */
+    private static Consumer<List<Stmt>> newEngine() {
+        Consumer<List<Stmt>> engine = Jlox.engine.get();
+        return statements -> engine.accept(Optimizer.optimize(statements));
+    }
+
+    /**
+     * The Interpreter with a Profiler (jlox --profile), which reports once the script has run, failed or not
+     */
+    private static Consumer<List<Stmt>> profiledInterpreter(Path script) {
+        Profiler profiler = new Profiler();
+        Interpreter interpreter = new Interpreter(output(), profiler);
+        return statements -> {
+            interpreter.interpret(statements);
+            try {
+                profiler.report(script, System.err);
+            }
+            catch (IOException e) {
+                System.err.println("could not write the profile: " + e.getMessage());
+            }
+        };
+    }
+
+    private static void run(CharSequence source) {
+        // large sources are lexed in chunks on all the cores, small ones by a single Lexer
+        TokenBuffer tokens = ParallelLexer.scanTokens(source);
 
         /*
-            for (Token token : tokens) {
-                System.out.println(token.toString());
+            for (int i = 0; i < tokens.size(); i++) {
+                System.out.println(tokens.token(i).toString());
             }
         */
         
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.startParsing();
+        // and parsed in segments of top level declarations on all the cores too
+        List<Stmt> statements = ParallelParser.parse(tokens);
         if (hadError) {
             // There is some error while parsing the lox code, AST is not generated propperly
             // Do not attempt to interpret this AST.
@@ -30,7 +74,7 @@ public class Jlox {
         }
 
         // interpret the AST
-        new Interpreter().interpret(statements);
+        newEngine().accept(statements);
 
         /*
             Expr parsedExpression = new Expr.Binary(
@@ -57,15 +101,111 @@ public class Jlox {
         // System.out.println(pnPrinter.print(parsedExpression));
     }
 
-    private static void runFile(String path) throws IOException {
-        byte bytes[] = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+    private static void runFile(String path, boolean cached) throws IOException {
+        if (cached) {
+            runCached(Paths.get(path));
+        }
+        else {
+            // the script is memory mapped and lexed in place instead of being read and decoded into a String
+            run(MappedSource.map(Paths.get(path)));
+        }
 
         if (hadError) System.exit(65);
 
         if (hadRuntimeError) System.exit(70); 
     }
 
+    /**
+     * Runs the script from its .loxc cache, which skips the Lexer and the Parser, see CompileCache.
+     * The script is parsed as usual when there is no up to date cache, and the cache is written for the next run
+     */
+    private static void runCached(Path script) throws IOException {
+        CompileCache cache = new CompileCache(script);
+        List<Stmt> cached = cache.load();
+        if (cached != null) {
+            newEngine().accept(cached);
+            return;
+        }
+
+        List<Stmt> statements = ParallelParser.parse(ParallelLexer.scanTokens(MappedSource.map(script)));
+        if (hadError) return;
+
+        FlatAst encoded;
+        try {
+            encoded = FlatAst.encode(statements);
+        }
+        catch (IllegalStateException e) {
+            // too large for the format of the cache, the script just runs without one
+            System.err.println("not caching " + script + ": " + e.getMessage());
+            newEngine().accept(statements);
+            return;
+        }
+
+        cache.store(encoded);
+        newEngine().accept(statements);
+    }
+
+    /**
+     * Runs the script every time it changes. Only the declarations that an edit touched are lexed and parsed again,
+     * see IncrementalParser
+     */
+    private static void watchFile(String path) throws IOException {
+        Path file = Paths.get(path);
+        FileTime modified = Files.getLastModifiedTime(file);
+        IncrementalParser frontEnd = new IncrementalParser(Files.readString(file));
+
+        for (;;) {
+            hadError = false;
+            hadRuntimeError = false;
+
+            frontEnd.reportErrors();
+            if (!hadError) {
+                newEngine().accept(frontEnd.statements());
+            }
+
+            FileTime lastModified = modified;
+            while (lastModified.equals(modified)) {
+                try {
+                    Thread.sleep(WATCH_INTERVAL_MS);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                modified = Files.getLastModifiedTime(file);
+            }
+
+            System.out.println("-- " + path + " changed --");
+            frontEnd.update(Files.readString(file));
+        }
+    }
+
+    /**
+     * Lexes, parses and executes one top level declaration at a time, so output starts right away and the memory used
+     * does not grow with the length of the input. Unlike the other modes, the declarations before a syntax error
+     * have already run when it is found
+     */
+    private static void runStream(Reader reader) {
+        Parser parser = new Parser(new Lexer(new ReaderSource(reader)));
+        Consumer<List<Stmt>> engine = newEngine();
+
+        for (;;) {
+            Stmt statement = parser.nextDeclaration();
+            if (statement == null) break;
+
+            // after a syntax error the rest is only parsed, to report its errors like a whole file run would
+            if (!hadError) {
+                engine.accept(List.of(statement));
+                if (hadRuntimeError) break;
+            }
+
+            parser.discardParsed();
+        }
+
+        if (hadError) System.exit(65);
+
+        if (hadRuntimeError) System.exit(70);
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
@@ -94,16 +234,16 @@ public class Jlox {
      */
     static void error(Token token, String message) {
         if (token.tokenType == TokenType.EOF) {
-            report(token.line, " at end ", message);
+            report(token.line(), " at end ", message);
         }
         else {
-            report(token.line, " at " + token.lexeme + "'", message);
+            report(token.line(), " at " + token.lexeme + "'", message);
         }
     }
 
     static void runtimeError (RuntimeError error) {
         System.err.println(error.getMessage() +
-        "\n" + "[line: " + error.token.line + "]");
+        "\n" + "[line: " + error.token.line() + "]");
 
         hadRuntimeError = true;
     }
@@ -114,16 +254,81 @@ public class Jlox {
         hadError = true;
     }
 
+    private static void usage() {
+        System.out.println("usage: jlox [--watch | --stream | --cache] [--vm | --closures | --jit (experimental) | --profile] [file_path]");
+        System.exit(64);
+    }
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("usage: jlox [file_path]");
-            System.exit(64);
+        String path = null;
+        boolean watch = false;
+        boolean stream = false;
+        boolean cached = false;
+        boolean profile = false;
+        int engines = 0;
+
+        for (String arg : args) {
+            if (arg.equals("--watch")) {
+                watch = true;
+            }
+            else if (arg.equals("--stream")) {
+                stream = true;
+            }
+            else if (arg.equals("--cache")) {
+                cached = true;
+            }
+            else if (arg.equals("--vm")) {
+                engines++;
+                engine = () -> new VM(output())::interpret;
+            }
+            else if (arg.equals("--closures")) {
+                engines++;
+                engine = () -> new ClosureCompiler(output())::interpret;
+            }
+            else if (arg.equals("--jit")) {
+                engines++;
+                engine = () -> new JitCompiler(output())::interpret;
+            }
+            else if (arg.equals("--profile")) {
+                // samples the tree walking Interpreter, see Profiler
+                engines++;
+                profile = true;
+            }
+            else if (arg.startsWith("--") || path != null) {
+                usage();
+            }
+            else {
+                path = arg;
+            }
         }
-        else if (args.length == 1) {
-            runFile(args[0]);
+
+        // --cache is for running a script file as it is
+        if ((watch ? 1 : 0) + (stream ? 1 : 0) + (cached ? 1 : 0) > 1 || (cached && path == null)) usage();
+        if (engines > 1) usage();
+        // a profile is of one run of a script file
+        if (profile && (path == null || watch || stream)) usage();
+        if (profile) {
+            Path script = Paths.get(path);
+            engine = () -> profiledInterpreter(script);
         }
-        else {
+
+        if (stream) {
+            // the script, or whatever is piped into stdin
+            runStream(path == null
+                ? new InputStreamReader(System.in)
+                : Files.newBufferedReader(Paths.get(path)));
+        }
+        else if (path == null) {
+            if (watch) usage();
+            flushPolicy = OutputSink.FlushPolicy.EVERY_LINE;
             runPrompt();
         }
+        else if (watch) {
+            flushPolicy = OutputSink.FlushPolicy.EVERY_LINE;
+            watchFile(path);
+        }
+        else {
+            runFile(path, cached);
+        }
     }
 }
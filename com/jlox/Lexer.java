@@ -1,58 +1,103 @@
 package com.jlox;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 // A new line character is represented as \r\n on windows
 
 public class Lexer {
-    private String source;
-    private List<Token> tokens = new ArrayList<Token>();
+    // The source is any CharSequence, so a memory mapped file can be lexed without first decoding it into a String
+    private CharSequence source;
+
+    // the source again, when it is one of the types that can be scanned in bulk (see skipWhitespace() and friends)
+    private String text;
+    private MappedSource mapped;
+
+    // the source again when it is read as the lexer goes, its length() grows whenever the lexer runs out of characters
+    private ReaderSource stream;
+
+    private TokenBuffer tokens;
     private int start = 0;
     private int curr = 0;
     private int line = 1;
 
-    // Keywords lookup map
-    static private Map<String, TokenType> keywords = new HashMap<>();
-
-    // This is a static initializer block.
-    // Code inside a static block is executed only once when the class is loaded into memory by the Java Virtual Machine (JVM).
-    // It's used to initialize static members (like keywords in this case) that require more complex setup than a simple one-line assignment.
-
-    static {
-        keywords.put("and", TokenType.AND);
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("fun", TokenType.FUN);
-        keywords.put("for", TokenType.FOR);
-        keywords.put("if", TokenType.IF);
-        keywords.put("nil", TokenType.NIL);
-        keywords.put("or", TokenType.OR);
-        keywords.put("print", TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super", TokenType.SUPER);
-        keywords.put("this", TokenType.THIS);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("var", TokenType.VAR);
-        keywords.put("while", TokenType.WHILE);
-    }
-
-    Lexer (String _source) {
+    // no new token is started at or after this offset, a token that starts before it is still read to its end
+    private int stop;
+
+    // identifiers of this compilation, the keywords are recognised by keywordType() and are never interned
+    private SymbolTable symbolTable;
+
+    // when set, errors are collected here instead of being reported through Jlox.error
+    ErrorLog errorLog = null;
+
+    Lexer (CharSequence _source) {
+        this(_source, new SymbolTable(), 0, _source.length(), 1);
+    }
+
+    /**
+     * A lexer for a source that is read as tokens are pulled from it with scanNext()
+     */
+    Lexer (ReaderSource _source) {
+        this(_source, new SymbolTable(), 0, Integer.MAX_VALUE, 1);
+    }
+
+    /**
+     * A lexer for the part [from, to) of the source that starts at line _line, identifiers are interned in _symbolTable.
+     * The source outside of the range is still used for lookahead, so a token crossing 'to' is lexed just like the
+     * lexer for the whole source would, position() tells where the lexer actually stopped
+     */
+    Lexer (CharSequence _source, SymbolTable _symbolTable, int from, int to, int _line) {
         this.source = _source;
+        this.text = _source instanceof String ? (String)_source : null;
+        this.mapped = _source instanceof MappedSource ? (MappedSource)_source : null;
+        this.stream = _source instanceof ReaderSource ? (ReaderSource)_source : null;
+        this.symbolTable = _symbolTable;
+        // a streamed source has no known length, its tokens are discarded as they get parsed
+        this.tokens = new TokenBuffer(_source, _symbolTable, stream != null ? 0 : to - from);
+        this.start = from;
+        this.curr = from;
+        this.stop = to;
+        this.line = _line;
     }
 
-    public List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    public TokenBuffer scanTokens() {
+        while (curr < stop && !isAtEnd()) {
             scanToken();
         }
 
         // Append the EOF token at the end
-        tokens.add(new Token(TokenType.EOF, null, line, ""));
+        tokens.add(TokenType.EOF, curr, 0, line);
+        return tokens;
+    }
+
+    /**
+     * Pulls the next token from the source: scans until a token has been added to tokens(), which is the EOF token
+     * once the source runs out
+     */
+    void scanNext() {
+        int scanned = tokens.size();
+        while (tokens.size() == scanned) {
+            if (isAtEnd()) {
+                tokens.add(TokenType.EOF, curr, 0, line);
+                return;
+            }
+            scanToken();
+        }
+    }
+
+    /**
+     * The tokens scanned so far
+     */
+    TokenBuffer tokens() {
         return tokens;
     }
 
+    /**
+     * Lets a streamed source forget the characters that no token in tokens() needs any more
+     */
+    void discardScannedSource() {
+        if (stream != null) {
+            stream.discard(tokens.size() > 0 ? tokens.start(0) : start);
+        }
+    }
+
     private void scanToken () {
         char c = advanceLexerPointer();
         switch (c) {
@@ -83,9 +128,7 @@ public class Lexer {
             case '/':
                 if (match('/')) {
                     // we have encountered a single line comment, so shunt all the characters until we reach a new line
-                    while (peek() != '\n' && !isAtEnd()) {
-                        advanceLexerPointer();
-                    }
+                    skipLineComment();
                 }
                 else if (match('*')) {
                     // we have encountered a multi line comment, so shunt all the characters until we reach a new line
@@ -99,10 +142,12 @@ public class Lexer {
             case ' ':
             case '\r': // carriage return
             case '\t': // tab character
-                // ignore ' ', '\r', '\t'
+                // ignore ' ', '\r', '\t', along with the rest of the whitespace that follows
+                skipWhitespace();
                 break;
             case '\n': // line feed
                 line++;
+                skipWhitespace();
             break;
             case '"':
                 createStringLiteralToken();
@@ -115,7 +160,7 @@ public class Lexer {
                    createIdentifierLiteralToken();
                 }
                 else {
-                    Jlox.error(line, "Unexpected character" );
+                    error("Unexpected character" );
                 }
             break;
         }
@@ -126,6 +171,9 @@ public class Lexer {
     private void shuntRecursiveMultiLineComments () {
         while (peek() != '*' && !isAtEnd()) {
             advanceLexerPointer();
+
+            // jump over the characters that cannot end the comment or start a nested one
+            curr = commentStop(curr);
             
             if (peek() == '/' && peekNext() == '*') {
                 // a nested multiline comment is encountered so call the shuntRecursiveMultiLineComments() function recursively
@@ -151,22 +199,25 @@ public class Lexer {
         }
 
         if (isAtEnd()) {
-            Jlox.error(line, "unterminated multiline comment");
+            error("unterminated multiline comment");
             return;
         }
     }
 
+    // Only the position of the lexeme is recorded, the TokenBuffer creates the lexeme and the literal when they are asked for
     private void addToken(TokenType tokenType) {
-        // Caution! this is not recursion, its a call to an overloaded method
-        addToken(tokenType, null);
-    }
-
-    private void addToken(TokenType tokenType, Object literal) {
-        String lexeme = source.substring(start, curr);
-        tokens.add(new Token(tokenType, literal, line, lexeme));
+        tokens.add(tokenType, start, curr - start, line);
     }
 
     private void createStringLiteralToken () {
+        if (text != null || mapped != null) {
+            // find the closing '"' in one go and count the lines of the string body afterwards
+            int quote = text != null ? text.indexOf('"', curr) : mapped.indexOf('"', curr);
+            int end = quote < 0 ? source.length() : quote;
+            line += countNewlines(curr, end);
+            curr = end;
+        }
+
         while(peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') line++; // this is done to support multiline strings
 
@@ -175,15 +226,15 @@ public class Lexer {
 
         if (isAtEnd()) {
             // we reached the end of file without encountering a closing '"';
-            Jlox.error(line, "Unterminated string literal");
+            error("Unterminated string literal");
+            return;
         }
         
         // Move the the curr pointer to shunt the closing '"'
         advanceLexerPointer();
 
-        // create the value for the string literal by removing the enclosing ""
-        String value = source.substring(start + 1, curr - 1);
-        addToken(TokenType.STRING, value);
+        // the value of the string literal is the lexeme without the enclosing "", see TokenBuffer.literal()
+        addToken(TokenType.STRING);
     }
 
     private void createNumberLiteralToken () {
@@ -198,27 +249,187 @@ public class Lexer {
             while (isDigit(peek())) advanceLexerPointer();
         }
 
-        addToken(
-            TokenType.NUMBER,
-            Double.parseDouble(source.substring(start, curr))
-        );
+        addToken(TokenType.NUMBER);
     }
 
     private void createIdentifierLiteralToken () {
-        while (isAlphaNumeric(peek())) advanceLexerPointer();
+        // hash the name while reading it so that interning does not have to read it again
+        int hash = source.charAt(start);
+        while (isAlphaNumeric(peek())) {
+            hash = 31 * hash + advanceLexerPointer();
+        }
 
-        String literal = source.substring(start, curr);
-        TokenType tokenType = keywords.get(literal);
+        TokenType tokenType = keywordType();
 
         if (tokenType == null) {
             // the literal is an identifier/variable name
-            tokenType = TokenType.IDENTIFIER;
+            tokens.addIdentifier(start, curr - start, line, symbolTable.intern(source, start, curr, hash));
+            return;
         }
 
         addToken(tokenType);
     }
 
+    /**
+     * Recognises the keywords with a trie that switches on the first (and for 'f' and 't' the second) character
+     * of the lexeme and then compares the rest of it in place, so no String is created or hashed
+     * @return the keyword's TokenType or null when the lexeme [start, curr) is not a keyword
+     */
+    private TokenType keywordType () {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", TokenType.AND);
+            case 'c': return checkKeyword(1, "lass", TokenType.CLASS);
+            case 'e': return checkKeyword(1, "lse", TokenType.ELSE);
+            case 'f':
+                if (curr - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", TokenType.FALSE);
+                        case 'o': return checkKeyword(2, "r", TokenType.FOR);
+                        case 'u': return checkKeyword(2, "n", TokenType.FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", TokenType.IF);
+            case 'n': return checkKeyword(1, "il", TokenType.NIL);
+            case 'o': return checkKeyword(1, "r", TokenType.OR);
+            case 'p': return checkKeyword(1, "rint", TokenType.PRINT);
+            case 'r': return checkKeyword(1, "eturn", TokenType.RETURN);
+            case 's': return checkKeyword(1, "uper", TokenType.SUPER);
+            case 't':
+                if (curr - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", TokenType.THIS);
+                        case 'r': return checkKeyword(2, "ue", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", TokenType.VAR);
+            case 'w': return checkKeyword(1, "hile", TokenType.WHILE);
+        }
+
+        return null;
+    }
+
+    private TokenType checkKeyword (int offset, String rest, TokenType tokenType) {
+        if (curr - start != offset + rest.length()) return null;
+
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) return null;
+        }
+        return tokenType;
+    }
+
+    // bulk scanning
+    // These do what the character at a time loops did, but Strings are searched with String.indexOf(), which the JIT
+    // compiles to vector instructions, and mapped sources 8 bytes at a time (see MappedSource)
+
+    private void skipLineComment () {
+        if (text != null || mapped != null) {
+            int newline = text != null ? text.indexOf('\n', curr) : mapped.indexOf('\n', curr);
+            curr = newline < 0 ? source.length() : newline;
+            return;
+        }
+
+        while (peek() != '\n' && !isAtEnd()) {
+            advanceLexerPointer();
+        }
+    }
+
+    // whitespace is never part of a token, so it is only skipped up to 'stop'
+    private void skipWhitespace () {
+        if (mapped != null) {
+            int end = Math.min(mapped.whitespaceEnd(curr), stop);
+            line += mapped.countNewlines(curr, end);
+            curr = end;
+            return;
+        }
+
+        while (curr < stop && !isAtEnd()) {
+            char c = source.charAt(curr);
+            if (c == '\n') {
+                line++;
+            }
+            else if (c != ' ' && c != '\r' && c != '\t') {
+                break;
+            }
+            curr++;
+        }
+    }
+
+    /**
+     * @return the first offset at or after from that holds a '*' or starts a nested "/*", or the end of the source
+     */
+    private int commentStop (int from) {
+        int length = source.length();
+
+        if (text != null) {
+            int star = text.indexOf('*', from);
+            if (star < 0) star = length;
+
+            for (int slash = text.indexOf('/', from); slash >= 0 && slash < star; slash = text.indexOf('/', slash + 1)) {
+                if (slash + 1 < length && text.charAt(slash + 1) == '*') return slash;
+            }
+            return star;
+        }
+
+        if (mapped != null) {
+            for (int i = mapped.indexOfStarOrSlash(from); i >= 0; i = mapped.indexOfStarOrSlash(i + 1)) {
+                if (mapped.charAt(i) == '*' || (i + 1 < length && mapped.charAt(i + 1) == '*')) return i;
+            }
+            return length;
+        }
+
+        for (int i = from; i < length; i++) {
+            char c = source.charAt(i);
+            if (c == '*' || (c == '/' && i + 1 < length && source.charAt(i + 1) == '*')) return i;
+        }
+        return length;
+    }
+
+    private int countNewlines (int from, int to) {
+        if (mapped != null) {
+            return mapped.countNewlines(from, to);
+        }
+
+        int count = 0;
+        for (int i = text.indexOf('\n', from); i >= 0 && i < to; i = text.indexOf('\n', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
     // helper methods
+
+    /**
+     * The offset the lexer stopped at
+     */
+    int position () {
+        return curr;
+    }
+
+    /**
+     * The line the lexer is at, i.e. the line of the last token once scanTokens() returns
+     */
+    int line () {
+        return line;
+    }
+
+    private void error (String message) {
+        if (errorLog != null) {
+            errorLog.error(line, curr, message);
+        }
+        else {
+            Jlox.error(line, message);
+        }
+    }
+
+    /**
+     * Copies the characters [from, to) of the source into a String, this is the only place the lexer copies the source
+     */
+    private String text (int from, int to) {
+        return source.subSequence(from, to).toString();
+    }
+
     private boolean isAlphaNumeric (char c) {
         return isAlpha(c) || isDigit(c);
     }
@@ -239,7 +450,7 @@ public class Lexer {
     }
 
     private char peekNext () {
-        if (curr + 1 >= source.length()) return '\0';
+        if (curr + 1 >= source.length() && !refill(curr + 1)) return '\0';
         return source.charAt(curr + 1);
     }
 
@@ -255,6 +466,19 @@ public class Lexer {
         return source.charAt(curr++);
     }
     private boolean isAtEnd() {
-        return curr >= source.length();
+        return curr >= source.length() && !refill(curr);
+    }
+
+    /**
+     * Reads a streamed source until the character at index is available
+     * @return false when there is no such character
+     */
+    private boolean refill(int index) {
+        if (stream == null) return false;
+
+        while (index >= stream.length()) {
+            if (!stream.fill()) return false;
+        }
+        return true;
     }
 }
@@ -0,0 +1,176 @@
+package com.jlox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A read only, zero-copy view over a memory mapped lox script
+// The bytes of the file are never copied onto the heap, the Lexer reads them straight out of the page cache
+// through the CharSequence interface and only the lexemes it keeps end up as Strings.
+// The bulk scanning methods read 8 bytes at a time as a little endian long and find the bytes they look for with SWAR
+// (SIMD within a register) bit tricks, see matches()
+final class MappedSource implements CharSequence {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    private MappedSource(ByteBuffer _bytes, int _offset, int _length) {
+        this.bytes = _bytes;
+        this.offset = _offset;
+        this.length = _length;
+    }
+
+    /**
+     * Maps the file at path and returns a view over its characters.
+     * Pure ASCII files (the common case for lox scripts) are viewed byte for byte. Any other UTF-8 file
+     * is decoded once into a CharBuffer, which still skips the byte[] and String copies of Files.readAllBytes
+     */
+    static CharSequence map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("lox script is too large to be mapped: " + path);
+            }
+
+            // the mapping stays valid after the channel is closed
+            // little endian so that the first byte of a long is its lowest byte, see indexOf()
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if (isAscii(mapped, (int)size)) {
+                return new MappedSource(mapped, 0, (int)size);
+            }
+
+            return StandardCharsets.UTF_8.decode(mapped);
+        }
+    }
+
+    private static boolean isAscii(ByteBuffer mapped, int size) {
+        int i = 0;
+
+        // check 8 bytes at a time, a byte is ASCII when its high bit is not set
+        for (; i + 8 <= size; i += 8) {
+            if ((mapped.getLong(i) & 0x8080808080808080L) != 0) return false;
+        }
+
+        for (; i < size; i++) {
+            if (mapped.get(i) < 0) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the index of the first c at or after from, or -1
+     */
+    int indexOf(char c, int from) {
+        long pattern = ONES * c;
+        int i = from;
+        for (; i + 8 <= length; i += 8) {
+            long found = matches(bytes.getLong(offset + i), pattern);
+            if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+
+        for (; i < length; i++) {
+            if (bytes.get(offset + i) == c) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first '*' or '/' at or after from, or -1
+     */
+    int indexOfStarOrSlash(int from) {
+        int i = from;
+        for (; i + 8 <= length; i += 8) {
+            long word = bytes.getLong(offset + i);
+            long found = matches(word, ONES * '*') | matches(word, ONES * '/');
+            if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+
+        for (; i < length; i++) {
+            byte b = bytes.get(offset + i);
+            if (b == '*' || b == '/') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first character at or after from that is not a ' ', '\t', '\r' or '\n', or length()
+     */
+    int whitespaceEnd(int from) {
+        int i = from;
+        for (; i + 8 <= length; i += 8) {
+            long word = bytes.getLong(offset + i);
+            long whitespace = matches(word, ONES * ' ') | matches(word, ONES * '\n')
+                            | matches(word, ONES * '\t') | matches(word, ONES * '\r');
+            if (whitespace != HIGH_BITS) return i + (Long.numberOfTrailingZeros(~whitespace & HIGH_BITS) >>> 3);
+        }
+
+        for (; i < length; i++) {
+            byte b = bytes.get(offset + i);
+            if (b != ' ' && b != '\n' && b != '\t' && b != '\r') return i;
+        }
+        return length;
+    }
+
+    /**
+     * @return the number of '\n' in [from, to)
+     */
+    int countNewlines(int from, int to) {
+        int count = 0;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            count += Long.bitCount(matches(bytes.getLong(offset + i), ONES * '\n'));
+        }
+
+        for (; i < to; i++) {
+            if (bytes.get(offset + i) == '\n') count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sets the high bit of every byte of word that is equal to the bytes of pattern (a byte repeated 8 times) and clears
+     * all the other bits. The bytes are xor-ed with the pattern and a byte is then zero exactly when the byte matched:
+     * adding 0x7F to its low 7 bits sets its high bit for any byte but zero, and no carry crosses into the next byte
+     */
+    private static long matches(long word, long pattern) {
+        long x = word ^ pattern;
+        return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return (char)bytes.get(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + ")");
+        }
+        return new MappedSource(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] chars = new byte[length];
+        bytes.get(offset, chars);
+        return new String(chars, StandardCharsets.US_ASCII);
+    }
+}
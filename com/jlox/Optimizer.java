@@ -0,0 +1,210 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jlox.Expr.Assignment;
+import com.jlox.Expr.Variable;
+import com.jlox.Stmt.BlockStmt;
+import com.jlox.Stmt.IfStmt;
+import com.jlox.Stmt.VarDecStmt;
+
+// Constant folding, run on the statements before any engine resolves and executes them, see Jlox.newEngine()
+// Operators on literals are replaced by the literal they evaluate to, e.g. (60 * 60 * 24) by 86400 and "a" + "b" by
+// "ab", groupings by what they group, and an if statement or a ternary with a literal condition by the branch it
+// takes. An operator that would fail at run time, like "a" - 1 or nil == 1, is left as it is, so that it still fails
+// when it runs and reports the line of its operator.
+// The trees are not modified: a node with folded children is rebuilt, one without is kept as it is
+public class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // what statement() returns for a statement that does nothing when it runs
+    private static final Stmt REMOVED = new BlockStmt(List.of());
+
+    // what fold() returns for operands the operator fails on at run time
+    private static final Object CANNOT_FOLD = new Object();
+
+    static List<Stmt> optimize(List<Stmt> statements) {
+        Optimizer optimizer = new Optimizer();
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt result = optimizer.statement(statement);
+            // a statement left without anything to do, e.g. if (false) print x;
+            if (result != REMOVED) optimized.add(result);
+        }
+        return optimized;
+    }
+
+    private Stmt statement(Stmt statement) {
+        // null for what the parser could not make sense of
+        return statement != null ? statement.accept(this) : null;
+    }
+
+    // a statement that has to be there, e.g. the branch of an if statement
+    private Stmt branch(Stmt statement) {
+        Stmt result = statement(statement);
+        return result != REMOVED ? result : new BlockStmt(new ArrayList<>());
+    }
+
+    private Expr expression(Expr expression) {
+        return expression != null ? expression.accept(this) : null;
+    }
+
+    @Override
+    public Stmt visitExprStmt(Stmt.ExprStmt expressionStatement) {
+        Expr expression = expression(expressionStatement.expression);
+        // nothing to evaluate, the value of an expression statement is dropped anyway
+        if (expression instanceof Expr.Literal) return REMOVED;
+        if (expression == expressionStatement.expression) return expressionStatement;
+        return new Stmt.ExprStmt(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.PrintStmt printStatement) {
+        Expr expression = expression(printStatement.expression);
+        if (expression == printStatement.expression) return printStatement;
+        return new Stmt.PrintStmt(expression);
+    }
+
+    @Override
+    public Stmt visitVarDecStmt(VarDecStmt varDecStatement) {
+        Expr initialiser = expression(varDecStatement.initialiser);
+        if (initialiser == varDecStatement.initialiser) return varDecStatement;
+        return new VarDecStmt(varDecStatement.name, initialiser);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(BlockStmt blockStatement) {
+        List<Stmt> statements = new ArrayList<>(blockStatement.blockStatementList.size());
+        boolean changed = false;
+        for (Stmt statement : blockStatement.blockStatementList) {
+            Stmt result = statement(statement);
+            if (result != REMOVED) statements.add(result);
+            changed |= result != statement;
+        }
+        if (!changed) return blockStatement;
+        return new BlockStmt(statements);
+    }
+
+    @Override
+    public Stmt visitIfStmt(IfStmt ifStatement) {
+        Expr conditional = expression(ifStatement.conditional);
+
+        if (conditional instanceof Expr.Literal literal) {
+            if (Interpreter.isTruthy(literal.value)) return statement(ifStatement.thenStatement);
+            if (ifStatement.elseStatemeStmt == null) return REMOVED;
+            return statement(ifStatement.elseStatemeStmt);
+        }
+
+        Stmt thenStatement = branch(ifStatement.thenStatement);
+        Stmt elseStatement = ifStatement.elseStatemeStmt != null ? branch(ifStatement.elseStatemeStmt) : null;
+        if (conditional == ifStatement.conditional && thenStatement == ifStatement.thenStatement
+                && elseStatement == ifStatement.elseStatemeStmt) {
+            return ifStatement;
+        }
+        return new IfStmt(conditional, thenStatement, elseStatement);
+    }
+
+    @Override
+    public Expr visitBinary(Expr.Binary expression) {
+        Expr left = expression(expression.left);
+        Expr right = expression(expression.right);
+
+        if (left instanceof Expr.Literal a && right instanceof Expr.Literal b) {
+            Object value = fold(expression.operator.tokenType, a.value, b.value);
+            if (value != CANNOT_FOLD) return new Expr.Literal(value);
+        }
+
+        if (left == expression.left && right == expression.right) return expression;
+        return new Expr.Binary(left, expression.operator, right);
+    }
+
+    // the value the Interpreter evaluates the operator to, for the operand types it does not fail on
+    private static Object fold(TokenType operator, Object left, Object right) {
+        if (left instanceof Double a && right instanceof Double b) {
+            switch (operator) {
+                case TokenType.PLUS: return a + b;
+                case TokenType.MINUS: return a - b;
+                case TokenType.STAR: return a * b;
+                case TokenType.SLASH: return a / b;
+                case TokenType.GREATER: return a > b;
+                case TokenType.GREATER_EQUALS: return a >= b;
+                case TokenType.LESSER: return a < b;
+                case TokenType.LESSER_EQUALS: return a <= b;
+                default: break;
+            }
+        }
+        if (left instanceof String a && right instanceof String b && operator == TokenType.PLUS) {
+            return a + b;
+        }
+
+        // isEqual() fails on nil compared to anything else
+        if (left != null || right == null) {
+            switch (operator) {
+                case TokenType.EQUALS_EQUALS: return Interpreter.isEqual(left, right);
+                case TokenType.BANG_EQUALS: return !Interpreter.isEqual(left, right);
+                default: break;
+            }
+        }
+        return CANNOT_FOLD;
+    }
+
+    @Override
+    public Expr visitUnary(Expr.Unary expression) {
+        Expr operand = expression(expression.expression);
+
+        if (operand instanceof Expr.Literal literal) {
+            switch (expression.operator.tokenType) {
+                case TokenType.MINUS:
+                    if (literal.value instanceof Double value) return new Expr.Literal(-value);
+                    break;
+                case TokenType.BANG:
+                    return new Expr.Literal(!Interpreter.isTruthy(literal.value));
+                default:
+                    break;
+            }
+        }
+
+        if (operand == expression.expression) return expression;
+        return new Expr.Unary(expression.operator, operand);
+    }
+
+    @Override
+    public Expr visitGrouping(Expr.Grouping expression) {
+        // a grouping only matters to the parser
+        return expression(expression.expression);
+    }
+
+    @Override
+    public Expr visitLiteral(Expr.Literal expression) {
+        return expression;
+    }
+
+    @Override
+    public Expr visitTernary(Expr.Ternary expression) {
+        Expr conditional = expression(expression.conditional);
+
+        // the condition has to be a boolean, anything else fails at run time
+        if (conditional instanceof Expr.Literal literal && literal.value instanceof Boolean value) {
+            return expression(value ? expression.trueBranch : expression.falseBranch);
+        }
+
+        Expr trueBranch = expression(expression.trueBranch);
+        Expr falseBranch = expression(expression.falseBranch);
+        if (conditional == expression.conditional && trueBranch == expression.trueBranch
+                && falseBranch == expression.falseBranch) {
+            return expression;
+        }
+        return new Expr.Ternary(conditional, trueBranch, falseBranch);
+    }
+
+    @Override
+    public Expr visitVariable(Variable expression) {
+        return expression;
+    }
+
+    @Override
+    public Expr visitAssignment(Assignment assignment) {
+        Expr value = expression(assignment.expression);
+        if (value == assignment.expression) return assignment;
+        return new Assignment(assignment.name, value);
+    }
+}
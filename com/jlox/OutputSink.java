@@ -0,0 +1,148 @@
+package com.jlox;
+
+import java.io.PrintStream;
+
+// Where the engines print to: a large buffer of characters in front of a PrintStream, normally System.out, so that a
+// print statement does not go through the synchronized and flushing PrintStream.println() every time. Numbers are
+// formatted straight into the buffer, see appendNumber().
+// The buffer is written out when it is full, after every line with the EVERY_LINE policy, and by flush(), which the
+// engines call once they are done with a run and before they report a runtime error, so that what the script printed
+// still comes before the error
+final class OutputSink {
+    enum FlushPolicy {
+        // only when the buffer is full, e.g. for a script file
+        WHEN_FULL,
+        // after every line as well, for the prompt and --watch, where someone reads along
+        EVERY_LINE
+    }
+
+    private static final int CAPACITY = 32 * 1024;
+
+    // the longest number appendNumber() formats itself: a sign, 7 digits, a point and 8 decimals
+    private static final int MAX_NUMBER_LENGTH = 17;
+    private static final int MAX_DECIMALS = 8;
+
+    // each one exact as a double, up to 10^MAX_DECIMALS
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L
+    };
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final PrintStream target;
+    private final FlushPolicy policy;
+
+    // allocated by the first print, an engine that prints nothing needs none
+    private char[] buffer;
+    private int count = 0;
+
+    OutputSink(PrintStream _target, FlushPolicy _policy) {
+        this.target = _target;
+        this.policy = _policy;
+    }
+
+    /**
+     * Prints the value as stringify() does, and ends the line
+     */
+    void printLine(Object value) {
+        if (value instanceof Double number) appendNumber(number);
+        else append(Interpreter.stringify(value));
+        endLine();
+    }
+
+    void printLine(double number) {
+        appendNumber(number);
+        endLine();
+    }
+
+    /**
+     * Writes out what is buffered and flushes the target
+     */
+    void flush() {
+        drain();
+        target.flush();
+    }
+
+    private void endLine() {
+        append(LINE_SEPARATOR);
+        if (policy == FlushPolicy.EVERY_LINE) flush();
+    }
+
+    private void drain() {
+        if (count == 0) return;
+        target.print(String.valueOf(buffer, 0, count));
+        count = 0;
+    }
+
+    // makes room for at least length characters
+    private void reserve(int length) {
+        if (buffer == null) buffer = new char[CAPACITY];
+        if (CAPACITY - count < length) drain();
+    }
+
+    private void append(String text) {
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            reserve(1);
+            int chunk = Math.min(length - start, CAPACITY - count);
+            text.getChars(start, start + chunk, buffer, count);
+            count += chunk;
+            start += chunk;
+        }
+    }
+
+    /**
+     * The text stringify() gives the number. Double.toString() prints the numbers from 10^-3 up to 10^7 in plain
+     * notation, with the fewest decimals that still read back as the number. Those with up to MAX_DECIMALS decimals,
+     * which is where they can be told apart with a double, are written here digit by digit, the others go through
+     * stringify()
+     */
+    private void appendNumber(double number) {
+        double magnitude = Math.abs(number);
+
+        if (magnitude >= 1e-3 && magnitude < 1e7) {
+            for (int decimals = 0; decimals <= MAX_DECIMALS; decimals++) {
+                // below 10^15, so the digits and the power of ten are exact and the division rounds like parsing does
+                long digits = Math.round(magnitude * POWERS_OF_TEN[decimals]);
+                if (digits / (double)POWERS_OF_TEN[decimals] == magnitude) {
+                    appendPlain(number < 0, digits, decimals);
+                    return;
+                }
+            }
+        }
+        else if (number == 0) {
+            // stringify() keeps the sign of -0
+            append(1 / number < 0 ? "-0" : "0");
+            return;
+        }
+
+        append(Interpreter.stringify(number));
+    }
+
+    private void appendPlain(boolean negative, long digits, int decimals) {
+        reserve(MAX_NUMBER_LENGTH);
+        if (negative) buffer[count++] = '-';
+
+        long integer = digits / POWERS_OF_TEN[decimals];
+        appendDigits(integer, 1);
+        if (decimals > 0) {
+            buffer[count++] = '.';
+            appendDigits(digits - integer * POWERS_OF_TEN[decimals], decimals);
+        }
+    }
+
+    // the decimal digits of value, padded with zeros to at least width of them
+    private void appendDigits(long value, int width) {
+        int length = width;
+        while (length < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[length]) {
+            length++;
+        }
+
+        for (int i = count + length - 1; i >= count; i--) {
+            buffer[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+        count += length;
+    }
+}
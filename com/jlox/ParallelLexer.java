@@ -0,0 +1,129 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Lexes large sources on all the cores of the machine
+// The source is cut into chunks right after a '\n' and every chunk is lexed by its own Lexer on the fork/join pool,
+// speculating that the chunk does not start inside a string literal or a /* */ comment.
+// The speculation is checked while the chunks are stitched back together in order: a chunk is used as it is when the
+// lexer of the chunk before it stopped exactly at its first character, otherwise the previous lexer ran past the cut
+// (inside a string or comment) and the chunk is lexed again from where that lexer stopped.
+// Either way the tokens, lines, symbol ids and errors come out identical to the ones of the sequential Lexer
+final class ParallelLexer {
+    // sources shorter than this are lexed by a single Lexer, splitting them costs more than it saves
+    private static final int MIN_CHUNK_LENGTH = 1 << 20;
+
+    // what the lexer of a chunk produced
+    private static class Chunk {
+        Chunk(int _from, int _to, Lexer _lexer, TokenBuffer _tokens, SymbolTable _symbolTable, ErrorLog _errorLog) {
+            this.from = _from;
+            this.to = _to;
+            this.lexer = _lexer;
+            this.tokens = _tokens;
+            this.symbolTable = _symbolTable;
+            this.errorLog = _errorLog;
+        }
+
+        final int from;
+        final int to;
+        final Lexer lexer;
+        final TokenBuffer tokens;
+        final SymbolTable symbolTable;
+        final ErrorLog errorLog;
+    }
+
+    private ParallelLexer() {}
+
+    static TokenBuffer scanTokens(CharSequence source) {
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors(), source.length() / MIN_CHUNK_LENGTH);
+        return scanTokens(source, chunks);
+    }
+
+    static TokenBuffer scanTokens(CharSequence source, int chunkCount) {
+        if (chunkCount < 2) {
+            return new Lexer(source).scanTokens();
+        }
+
+        List<Callable<Chunk>> work = new ArrayList<>();
+        int from = 0;
+        for (int i = 1; i <= chunkCount && from < source.length(); i++) {
+            int to = i == chunkCount ? source.length() : lineStart(source, Math.max(from, (int)((long)source.length() * i / chunkCount)));
+            int chunkFrom = from;
+            work.add(() -> scanChunk(source, chunkFrom, to));
+            from = to;
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            for (Future<Chunk> result : ForkJoinPool.commonPool().invokeAll(work)) {
+                chunks.add(result.get());
+            }
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("parallel lexing failed", e);
+        }
+
+        return stitch(source, chunks);
+    }
+
+    private static Chunk scanChunk(CharSequence source, int from, int to) {
+        // every chunk interns into its own table and starts at line 1, both are fixed up by stitch()
+        SymbolTable symbolTable = new SymbolTable();
+        ErrorLog errorLog = new ErrorLog();
+        Lexer lexer = new Lexer(source, symbolTable, from, to, 1);
+        lexer.errorLog = errorLog;
+        return new Chunk(from, to, lexer, lexer.scanTokens(), symbolTable, errorLog);
+    }
+
+    private static TokenBuffer stitch(CharSequence source, List<Chunk> chunks) {
+        SymbolTable symbolTable = new SymbolTable();
+        TokenBuffer tokens = new TokenBuffer(source, symbolTable, source.length());
+
+        int position = 0;
+        int line = 1;
+        for (Chunk chunk : chunks) {
+            if (position >= chunk.to) {
+                // the lexer of an earlier chunk already read all of this one
+                continue;
+            }
+
+            if (position == chunk.from) {
+                // the speculation held, the chunk really started outside of any token
+                int[] symbols = new int[chunk.symbolTable.size()];
+                for (int id = 0; id < symbols.length; id++) {
+                    String name = chunk.symbolTable.name(id);
+                    symbols[id] = symbolTable.intern(name, 0, name.length());
+                }
+
+                tokens.append(chunk.tokens, chunk.tokens.size() - 1, line - 1, symbols);
+                chunk.errorLog.report(line - 1);
+                position = chunk.lexer.position();
+                line = chunk.lexer.line() + line - 1;
+            }
+            else {
+                // the chunk starts inside a string or a comment of the previous one, lex the rest of it again
+                Lexer lexer = new Lexer(source, symbolTable, position, chunk.to, line);
+                TokenBuffer rest = lexer.scanTokens();
+                tokens.append(rest, rest.size() - 1, 0, null);
+                position = lexer.position();
+                line = lexer.line();
+            }
+        }
+
+        tokens.add(TokenType.EOF, position, 0, line);
+        return tokens;
+    }
+
+    // the offset right after the next '\n' at or after from, or the end of the source
+    private static int lineStart(CharSequence source, int from) {
+        for (int i = from; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') return i + 1;
+        }
+        return source.length();
+    }
+}
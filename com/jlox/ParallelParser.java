@@ -0,0 +1,162 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Parses large token streams on all the cores of the machine
+// A scan over the token types cuts the tokens into segments at top level declaration boundaries: right after a ';' or
+// a '}' that is outside of any braces and parentheses and that is not followed by an else. Every segment is parsed by
+// its own Parser on the fork/join pool, collecting its errors in its own ErrorLog.
+// The segments are then joined in order and their errors replayed through Jlox.error, up to the first segment that
+// ran into a syntax error, which is where the sequential parser stops too. A segment whose parser did not end exactly
+// at its last token (the scan guessed a boundary wrong) and everything after it is parsed again sequentially.
+// Either way the statements and the reported errors are the ones of Parser.startParsing()
+final class ParallelParser {
+    // token streams shorter than this are parsed by a single Parser, splitting them costs more than it saves
+    private static final int MIN_SEGMENT_TOKENS = 1 << 16;
+
+    // what the parser of a segment produced
+    private static class Segment {
+        Segment(int _from, int _to, List<Stmt> _statements, int _end, boolean _failed, ErrorLog _errorLog) {
+            this.from = _from;
+            this.to = _to;
+            this.statements = _statements;
+            this.end = _end;
+            this.failed = _failed;
+            this.errorLog = _errorLog;
+        }
+
+        final int from;
+        final int to;
+        final List<Stmt> statements;
+
+        // where the parser stopped
+        final int end;
+        final boolean failed;
+        final ErrorLog errorLog;
+    }
+
+    private ParallelParser() {}
+
+    /**
+     * @return the statements, or null after a syntax error like Parser.startParsing()
+     */
+    static List<Stmt> parse(TokenBuffer tokens) {
+        int segments = Math.min(Runtime.getRuntime().availableProcessors(), tokens.size() / MIN_SEGMENT_TOKENS);
+        return parse(tokens, segments);
+    }
+
+    static List<Stmt> parse(TokenBuffer tokens, int segmentCount) {
+        List<Integer> cuts = cuts(tokens, segmentCount);
+        if (cuts.size() < 3) {
+            return new Parser(tokens).startParsing();
+        }
+
+        List<Callable<Segment>> work = new ArrayList<>();
+        for (int i = 0; i < cuts.size() - 1; i++) {
+            int from = cuts.get(i);
+            int to = cuts.get(i + 1);
+            work.add(() -> parseSegment(tokens, from, to));
+        }
+
+        List<Segment> parsed = new ArrayList<>();
+        try {
+            for (Future<Segment> result : ForkJoinPool.commonPool().invokeAll(work)) {
+                parsed.add(result.get());
+            }
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("parallel parsing failed", e);
+        }
+
+        List<Stmt> statements = new ArrayList<>();
+        for (Segment segment : parsed) {
+            if (segment.failed) {
+                segment.errorLog.report();
+                return null;
+            }
+
+            if (segment.end != segment.to) {
+                // the segment did not end at a declaration boundary after all, parse the rest as a whole
+                Parser parser = new Parser(tokens);
+                parser.curr = segment.from;
+                List<Stmt> rest = parser.startParsing();
+                if (rest == null) return null;
+
+                statements.addAll(rest);
+                return statements;
+            }
+
+            segment.errorLog.report();
+            statements.addAll(segment.statements);
+        }
+
+        return statements;
+    }
+
+    private static Segment parseSegment(TokenBuffer tokens, int from, int to) {
+        ErrorLog errorLog = new ErrorLog();
+        Parser parser = new Parser(tokens);
+        parser.curr = from;
+        parser.errorLog = errorLog;
+
+        List<Stmt> statements = new ArrayList<>();
+        while (parser.position() < to) {
+            Stmt statement = parser.nextDeclaration();
+            if (statement == null) break;
+            statements.add(statement);
+        }
+
+        return new Segment(from, to, statements, parser.position(), parser.failed(), errorLog);
+    }
+
+    /**
+     * The token indexes the segments start at, followed by the index of the EOF token. The segments are about
+     * tokens.size() / segmentCount tokens long, the last one takes the rest when no boundary turns up
+     */
+    private static List<Integer> cuts(TokenBuffer tokens, int segmentCount) {
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+
+        int eof = tokens.size() - 1;
+        if (segmentCount >= 2) {
+            int depth = 0;
+            long next = (long)eof / segmentCount;
+            for (int i = 0; i < eof && depth >= 0; i++) {
+                switch (tokens.type(i)) {
+                    case LEFT_BRACE:
+                    case LEFT_PARENTHESIS:
+                        depth++;
+                        break;
+                    case RIGHT_PARENTHESIS:
+                        depth--;
+                        break;
+                    case RIGHT_BRACE:
+                        depth--;
+                        if (depth == 0 && i >= next && tokens.type(i + 1) != TokenType.ELSE) {
+                            cuts.add(i + 1);
+                            next = (long)eof * cuts.size() / segmentCount;
+                        }
+                        break;
+                    case SEMI_COLON:
+                        if (depth == 0 && i >= next && tokens.type(i + 1) != TokenType.ELSE) {
+                            cuts.add(i + 1);
+                            next = (long)eof * cuts.size() / segmentCount;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        // a ';' right before the EOF leaves an empty last segment
+        if (cuts.get(cuts.size() - 1) == eof) cuts.remove(cuts.size() - 1);
+        cuts.add(eof);
+        return cuts;
+    }
+}
@@ -38,53 +38,131 @@ package com.jlox;
     unary := ('!', '-')unary | primary
     primary := NUMBER | STRING | '(' expression ')' | "true" | "false" | "nil" | IDENTIFIER
 
+    Statements are parsed by recursive descent as above, but expressions are parsed by precedence climbing (a Pratt
+    parser) instead of a method per level: every token type has a prefix rule (the primaries and the unary operators)
+    and/or an infix rule with a binding power (the levels above, from assignment up to factor), looked up in the tables
+    below. A primary then costs one call instead of one per level and the trees come out the same
 */
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class Parser {
-    Parser (List<Token> _tokens) {
+    private interface PrefixRule {
+        Expr parse(Parser parser);
+    }
+
+    private interface InfixRule {
+        Expr parse(Parser parser, Expr left);
+    }
+
+    // binding powers of the infix operators, from the loosest to the tightest, NONE for the tokens that are not one
+    private static final int NONE = 0;
+    private static final int ASSIGNMENT = 1;
+    private static final int TERNARY = 2;
+    private static final int EQUALITY = 3;
+    private static final int COMPARISON = 4;
+    private static final int TERM = 5;
+    private static final int FACTOR = 6;
+
+    // the rules of the expression parser, indexed by TokenType ordinal
+    private static final PrefixRule[] PREFIX = new PrefixRule[TokenType.values().length];
+    private static final InfixRule[] INFIX = new InfixRule[TokenType.values().length];
+    private static final int[] BINDING_POWER = new int[TokenType.values().length];
+
+    static {
+        prefix(Parser::literal, TokenType.NUMBER, TokenType.STRING);
+        prefix(parser -> new Expr.Literal(null), TokenType.NIL);
+        prefix(parser -> new Expr.Literal(true), TokenType.TRUE);
+        prefix(parser -> new Expr.Literal(false), TokenType.FALSE);
+        prefix(Parser::grouping, TokenType.LEFT_PARENTHESIS);
+        prefix(Parser::variable, TokenType.IDENTIFIER);
+        prefix(Parser::unary, TokenType.BANG, TokenType.MINUS);
+
+        infix(Parser::assignment, ASSIGNMENT, TokenType.EQUALS);
+        infix(Parser::ternary, TERNARY, TokenType.QUESTION_MARK);
+        infix(Parser::binary, EQUALITY, TokenType.EQUALS_EQUALS, TokenType.BANG_EQUALS);
+        infix(Parser::binary, COMPARISON, TokenType.GREATER, TokenType.GREATER_EQUALS, TokenType.LESSER, TokenType.LESSER_EQUALS);
+        infix(Parser::binary, TERM, TokenType.PLUS, TokenType.MINUS);
+        infix(Parser::binary, FACTOR, TokenType.STAR, TokenType.SLASH);
+    }
+
+    private static void prefix(PrefixRule rule, TokenType ...types) {
+        for (TokenType type : types) PREFIX[type.ordinal()] = rule;
+    }
+
+    private static void infix(InfixRule rule, int power, TokenType ...types) {
+        for (TokenType type : types) {
+            INFIX[type.ordinal()] = rule;
+            BINDING_POWER[type.ordinal()] = power;
+        }
+    }
+
+    Parser (TokenBuffer _tokens) {
         this.tokens = _tokens;
     }
 
-    List<Token> tokens;
+    /**
+     * A parser that pulls its tokens from the lexer as it needs them, see nextDeclaration() and discardParsed()
+     */
+    Parser (Lexer _lexer) {
+        this.tokens = _lexer.tokens();
+        this.lexer = _lexer;
+    }
+
+    // The parser walks the token buffer by index and only materializes a Token object when
+    // one is stored in the AST (operators, names) or reported in an error
+    TokenBuffer tokens;
+
+    // set when the tokens are pulled from the lexer on demand, otherwise tokens already ends with the EOF token
+    private Lexer lexer = null;
     private static class ParserError extends RuntimeException {}
     int curr = 0;
 
+    // when set, errors are collected here instead of being reported through Jlox.error
+    ErrorLog errorLog = null;
+
+    // set when nextDeclaration() ran into a syntax error
+    private boolean failed = false;
+
     /* helper methods */
     private Token peek() {
-        return tokens.get(curr);
+        type(curr);
+        return tokens.token(curr);
     }
 
     private Token previous() {
-        return tokens.get(curr - 1);
+        return tokens.token(curr - 1);
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) curr++;
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().tokenType == TokenType.EOF;
+        return type(curr) == TokenType.EOF;
     }
 
     private boolean check(TokenType type) {
-        return peek().tokenType == type;
+        return type(curr) == type;
+    }
+
+    private TokenType type(int index) {
+        if (lexer != null) {
+            while (index >= tokens.size()) lexer.scanNext();
+        }
+        return tokens.type(index);
     }
 
     /**
-     * This method also consumes the current token, if the curr token matches with any of the provided tokens
-     * @param types: tokens to match the "curr" token with
+     * This method also consumes the current token, if the curr token matches with the provided token
+     * @param type: token to match the "curr" token with
      * @return true/false
      */
-    private boolean match(TokenType ...types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
 
         return false;
@@ -104,6 +182,43 @@ public class Parser {
         }
     }
 
+    /**
+     * Parses a single top level declaration, for the callers that need to know where every declaration ends (see position())
+     * @return the declaration, or null at the end of the tokens or after a syntax error, which failed() tells apart
+     */
+    Stmt nextDeclaration() {
+        if (isAtEnd()) return null;
+
+        try {
+            return declaration();
+        }
+        catch (ParserError err) {
+            failed = true;
+            return null;
+        }
+    }
+
+    boolean failed() {
+        return failed;
+    }
+
+    /**
+     * Forgets the tokens (and their source) that have been parsed, so that a parser pulling tokens from a lexer
+     * only holds on to the declaration it is parsing
+     */
+    void discardParsed() {
+        tokens.discard(curr);
+        curr = 0;
+        lexer.discardScannedSource();
+    }
+
+    /**
+     * Index of the next token to be parsed
+     */
+    int position() {
+        return curr;
+    }
+
     private Stmt declaration () {
         if (match(TokenType.VAR)) {
             return variableDeclaration();
@@ -162,123 +277,93 @@ public class Parser {
         return new Stmt.ExprStmt(expr);
     }
 
-    private Expr expression () { 
-        return assignment();
+    private Expr expression () {
+        return expression(ASSIGNMENT);
     }
 
-    private Expr assignment() {
-        Expr expression = ternary();
-
-        if (match(TokenType.EQUALS)) {
-            Token equalSymbol = previous(); 
-            Expr value = assignment();
-
-            if (expression instanceof Expr.Variable) {
-                Token name = ((Expr.Variable)expression).name;
-                return new Expr.Assignment(name, value);    
+    /**
+     * Parses an expression whose operators all bind at least as tightly as minPower
+     */
+    private Expr expression(int minPower) {
+        Expr expr = prefix();
+
+        for (;;) {
+            int rule = type(curr).ordinal();
+            int power = BINDING_POWER[rule];
+            if (power == NONE || power < minPower) {
+                return expr;
             }
 
-            error(equalSymbol, "Assignment target should be a variable");
+            advance();
+            expr = INFIX[rule].parse(this, expr);
         }
-
-        return expression;
     }
-    
-    private Expr ternary () {
-        Expr expr = equality();
 
-        while (match(TokenType.QUESTION_MARK)) {
-            Expr trueBranch = expression();
+    private Expr prefix() {
+        PrefixRule rule = PREFIX[type(curr).ordinal()];
 
-            if (!match(TokenType.COLON)) {
-                throw error(peek(), "expected a ':'");
-            }
+        // like primary() used to, leave an unexpected token to whoever comes next
+        if (rule == null) return null;
 
-            // match() has consumed the ':' token
-            Expr falseBranch = expression();
-            expr = new Expr.Ternary(expr, trueBranch, falseBranch);
-        }
+        advance();
+        return rule.parse(this);
+    }
 
-        return expr;
+    /* prefix rules, called with their first token already consumed */
+    private Expr unary() {
+        Token operator = previous();
+        Expr expr = prefix();
+        return new Expr.Unary(operator, expr);
     }
 
-    private Expr equality () {
-        Expr expr = comparison();
-        while (match(TokenType.EQUALS_EQUALS, TokenType.BANG_EQUALS)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    private Expr literal() {
+        return new Expr.Literal(tokens.literal(curr - 1));
     }
 
-    private Expr comparison () {
-        Expr expr = term();
+    private Expr grouping() {
+        Expr expr = expression();
+        consume(TokenType.RIGHT_PARENTHESIS, "Expected ')' after an expression.");
+        return new Expr.Grouping(expr);
+    }
 
-        while (match(TokenType.GREATER, TokenType.GREATER_EQUALS, TokenType.LESSER, TokenType.LESSER_EQUALS)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    private Expr variable() {
+        return new Expr.Variable(previous());
     }
 
-    private Expr term () {
-        Expr expr = factor();
+    /* infix rules, called with their operator already consumed */
+    private Expr binary(Expr left) {
+        Token operator = previous();
 
-        while (match(TokenType.PLUS, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+        // all the binary operators are left associative, so the right operand only takes the tighter ones
+        Expr right = expression(BINDING_POWER[tokens.type(curr - 1).ordinal()] + 1);
+        return new Expr.Binary(left, operator, right);
     }
 
-    private Expr factor () {
-        Expr expr = unary();
+    private Expr ternary(Expr conditional) {
+        Expr trueBranch = expression();
 
-        while (match(TokenType.STAR, TokenType.SLASH)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+        if (!match(TokenType.COLON)) {
+            throw error(peek(), "expected a ':'");
         }
 
-        return expr;
+        // match() has consumed the ':' token
+        Expr falseBranch = expression();
+        return new Expr.Ternary(conditional, trueBranch, falseBranch);
     }
 
-    private Expr unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr expr = unary();
-            return new Expr.Unary(operator, expr);
-        }
+    private Expr assignment(Expr target) {
+        Token equalSymbol = previous();
 
-        return primary();
-    }
+        // right associative, a = b = c assigns b = c first
+        Expr value = expression(ASSIGNMENT);
 
-    private Expr primary() {
-        if (match(TokenType.NIL)) {
-            return new Expr.Literal(null);
-        }
-        else if (match(TokenType.TRUE)) {
-            return new Expr.Literal(true);
-        }
-        else if (match(TokenType.FALSE)) {
-            return new Expr.Literal(false);
-        }
-        else if (match(TokenType.STRING, TokenType.NUMBER)) {
-            return new Expr.Literal(previous().literal);
-        }
-        else if (match(TokenType.LEFT_PARENTHESIS)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PARENTHESIS, "Expected ')' after an expression.");
-            return new Expr.Grouping(expr);
-        }
-        else if (match(TokenType.IDENTIFIER)) {
-            return new Expr.Variable(previous());
+        if (target instanceof Expr.Variable) {
+            Token name = ((Expr.Variable)target).name;
+            return new Expr.Assignment(name, value);
         }
 
-        return null;
+        error(equalSymbol, "Assignment target should be a variable");
+        return target;
     }
 
     private Token consume (TokenType tokenType, String message) {
@@ -291,7 +376,12 @@ public class Parser {
     }
 
     private ParserError error(Token token, String message) {
-        Jlox.error(token, message);
+        if (errorLog != null) {
+            errorLog.error(token, message);
+        }
+        else {
+            Jlox.error(token, message);
+        }
         return new ParserError();
     }
 }
@@ -0,0 +1,191 @@
+package com.jlox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import com.jlox.Stmt.BlockStmt;
+import com.jlox.Stmt.IfStmt;
+import com.jlox.Stmt.VarDecStmt;
+
+// The sampling profiler of jlox --profile, for the tree walking Interpreter
+// The Interpreter keeps the stack of the statements it is running here, see enter() and exit(). A timer thread counts
+// the INTERVAL_NANOS that went by, and the next time a statement finishes the Interpreter credits the intervals counted
+// since the last sample to its stack, which is the statement that was running meanwhile: a statement that runs for a
+// second gets the samples of a second. Nothing reads the stack from another thread.
+// The timer thread is started by the first run and keeps counting until the program exits, starting, waking and
+// joining a thread for every run cost more than the profiling itself on short scripts.
+// A frame is a statement and its line, the line of the first token of the statement (a statement of literals only,
+// like print "done"; has no token and shows the line of the statement around it). Expressions get no frame of their
+// own, the time spent evaluating one goes to its statement: the line is what the report shows anyway, and a frame for
+// every expression would cost the push of the statements again several times over.
+// report() writes the samples as collapsed stacks (frames separated by ';' then the count, one stack per line), which
+// flame graph tools such as flamegraph.pl and speedscope read, and prints the self and total time of every line
+final class Profiler {
+    // the unit of the samples
+    static final long INTERVAL_NANOS = 1_000_000;
+
+    // how often the timer thread wakes up to count, waking up every interval would slow the Interpreter down
+    // noticeably on a machine with few cores
+    static final long WAKE_NANOS = 10 * INTERVAL_NANOS;
+
+    // the statements being run, outermost first
+    private Stmt[] stack = new Stmt[16];
+    private int depth = 0;
+
+    // the intervals since the timer thread started, written by it only
+    private volatile int ticks = 0;
+    // the intervals the samples so far account for, and the ones before the run
+    private int credited = 0;
+    private Thread timer;
+    private long begin;
+
+    // the number of samples of every stack
+    private final Map<List<Stmt>, int[]> samples = new HashMap<>();
+    private int sampleCount = 0;
+
+    void start() {
+        depth = 0;
+        if (timer == null) {
+            begin = System.nanoTime();
+            timer = new Thread(this::tick, "jlox profiler");
+            timer.setDaemon(true);
+            timer.start();
+        }
+        // the intervals that went by before the run are nobody's
+        credited = (int)((System.nanoTime() - begin) / INTERVAL_NANOS);
+    }
+
+    private void tick() {
+        while (true) {
+            LockSupport.parkNanos(WAKE_NANOS);
+            // counted from the clock, a timer that wakes up late still counts every interval
+            ticks = (int)((System.nanoTime() - begin) / INTERVAL_NANOS);
+        }
+    }
+
+    void enter(Stmt statement) {
+        if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = statement;
+    }
+
+    void exit() {
+        // the count of a timer that has not woken up since start() is behind credited
+        int now = ticks;
+        if (now > credited) sample(now - credited);
+        depth--;
+    }
+
+    private void sample(int count) {
+        credited += count;
+        // Stmt has no equals(), so equal stacks are the ones of the same nodes
+        samples.computeIfAbsent(List.of(Arrays.copyOf(stack, depth)), key -> new int[1])[0] += count;
+        sampleCount += count;
+    }
+
+    /**
+     * Writes the collapsed stacks to script + ".collapsed" and prints the table of the lines to report
+     */
+    void report(Path script, PrintStream report) throws IOException {
+        String root = script.getFileName().toString();
+        Map<Stmt, Integer> lines = new IdentityHashMap<>();
+        // self and total samples of every line
+        Map<Integer, int[]> times = new HashMap<>();
+
+        Path collapsed = script.resolveSibling(root + ".collapsed");
+        try (Writer writer = Files.newBufferedWriter(collapsed)) {
+            for (Map.Entry<List<Stmt>, int[]> entry : samples.entrySet()) {
+                List<Stmt> stack = entry.getKey();
+                int count = entry.getValue()[0];
+                StringBuilder frames = new StringBuilder(root);
+                List<Integer> counted = new ArrayList<>(stack.size());
+
+                int line = -1;
+                for (Stmt statement : stack) {
+                    int own = lines.computeIfAbsent(statement, Profiler::line);
+                    if (own >= 0) line = own;
+                    frames.append(';').append(kind(statement)).append(':').append(line >= 0 ? line : "?");
+
+                    // a line counts once towards the total of a sample, however many of its statements are running
+                    if (!counted.contains(line)) {
+                        counted.add(line);
+                        times.computeIfAbsent(line, key -> new int[2])[1] += count;
+                    }
+                }
+                times.computeIfAbsent(line, key -> new int[2])[0] += count;
+
+                writer.write(frames.append(' ').append(count).append('\n').toString());
+            }
+        }
+
+        report.println("profile: " + sampleCount + " samples of " + INTERVAL_NANOS / 1000 + " us, stacks in " + collapsed);
+        if (sampleCount == 0) return;
+
+        List<Map.Entry<Integer, int[]>> rows = new ArrayList<>(times.entrySet());
+        rows.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+            ? b.getValue()[0] - a.getValue()[0]
+            : b.getValue()[1] - a.getValue()[1]);
+
+        report.printf("%8s %10s %7s %10s %7s%n", "line", "self ms", "self", "total ms", "total");
+        for (Map.Entry<Integer, int[]> row : rows) {
+            int[] time = row.getValue();
+            report.printf("%8s %10.1f %6.1f%% %10.1f %6.1f%%%n",
+                row.getKey() >= 0 ? row.getKey() : "?",
+                milliseconds(time[0]), 100.0 * time[0] / sampleCount,
+                milliseconds(time[1]), 100.0 * time[1] / sampleCount);
+        }
+    }
+
+    private static double milliseconds(int sampleCount) {
+        return sampleCount * INTERVAL_NANOS / 1e6;
+    }
+
+    private static String kind(Stmt statement) {
+        if (statement instanceof Stmt.PrintStmt) return "print";
+        if (statement instanceof VarDecStmt) return "var";
+        if (statement instanceof BlockStmt) return "block";
+        if (statement instanceof IfStmt) return "if";
+        return "expression";
+    }
+
+    // the line of the first token of the statement, -1 when it has none
+    private static int line(Stmt statement) {
+        if (statement instanceof Stmt.ExprStmt expressionStatement) return line(expressionStatement.expression);
+        if (statement instanceof Stmt.PrintStmt printStatement) return line(printStatement.expression);
+        if (statement instanceof VarDecStmt varDecStatement) return varDecStatement.name.line();
+        if (statement instanceof IfStmt ifStatement) return line(ifStatement.conditional);
+        if (statement instanceof BlockStmt blockStatement) {
+            for (Stmt inner : blockStatement.blockStatementList) {
+                int line = inner != null ? line(inner) : -1;
+                if (line >= 0) return line;
+            }
+        }
+        return -1;
+    }
+
+    private static int line(Expr expression) {
+        if (expression instanceof Expr.Binary binary) {
+            int line = line(binary.left);
+            return line >= 0 ? line : binary.operator.line();
+        }
+        if (expression instanceof Expr.Unary unary) return unary.operator.line();
+        if (expression instanceof Expr.Grouping grouping) return line(grouping.expression);
+        if (expression instanceof Expr.Ternary ternary) {
+            int line = line(ternary.conditional);
+            if (line < 0) line = line(ternary.trueBranch);
+            return line >= 0 ? line : line(ternary.falseBranch);
+        }
+        if (expression instanceof Expr.Variable variable) return variable.name.line();
+        if (expression instanceof Expr.Assignment assignment) return assignment.name.line();
+        return -1;
+    }
+}
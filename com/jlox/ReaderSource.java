@@ -0,0 +1,87 @@
+package com.jlox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+// A source that is read from a Reader as the Lexer gets to it, for scripts that are piped in or too large to hold at once
+// Offsets are absolute (counted from the start of the input), but only the characters from the last discard() on are
+// kept, so the memory used stays bounded by the longest declaration and not by the length of the input.
+// length() is the number of characters read so far, fill() reads more of them
+final class ReaderSource implements CharSequence {
+    private static final int READ_SIZE = 8192;
+
+    private final Reader reader;
+    private char[] buffer = new char[READ_SIZE];
+
+    // buffer[0] holds the character at offset 'base' and the characters up to offset 'end' have been read
+    private int base = 0;
+    private int end = 0;
+    private boolean atEnd = false;
+
+    ReaderSource (Reader _reader) {
+        this.reader = _reader;
+    }
+
+    /**
+     * Reads the next block of characters, blocking until some are available
+     * @return false once the reader has no more characters
+     */
+    boolean fill() {
+        if (atEnd) return false;
+
+        if (end - base + READ_SIZE > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, end - base + READ_SIZE));
+        }
+
+        try {
+            int read = reader.read(buffer, end - base, READ_SIZE);
+            if (read < 0) {
+                atEnd = true;
+                return false;
+            }
+            end += read;
+            return true;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forgets the characters before offset, they can not be read any more
+     */
+    void discard(int offset) {
+        if (offset <= base) return;
+
+        System.arraycopy(buffer, offset - base, buffer, 0, end - offset);
+        base = offset;
+    }
+
+    @Override
+    public int length() {
+        return end;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < base || index >= end) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return buffer[index - base];
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (from < base || to > end || from > to) {
+            throw new IndexOutOfBoundsException("[" + from + ", " + to + ")");
+        }
+        return new String(buffer, from - base, to - from);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, end - base);
+    }
+}
@@ -0,0 +1,180 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jlox.Expr.Assignment;
+import com.jlox.Expr.Variable;
+import com.jlox.Stmt.BlockStmt;
+import com.jlox.Stmt.IfStmt;
+import com.jlox.Stmt.VarDecStmt;
+
+// Static resolution of the variables of a top level statement, run by the Interpreter right before it executes one
+// Every block gets an array backed Environment frame and every variable declared in it a slot of the frame, in the
+// order of the declarations (declaring a name again in the same block reuses its slot, like define() overwrites it).
+// Every Variable and Assignment is then annotated with the number of frames between it and the block that declares
+// its name (depth) and the slot of the name in that block, so the Interpreter finds it without any lookup by name.
+// A name is resolved at the point it is used: only the declarations of a block that come before the use count, which
+// is exactly what looking it up in the environment chain at run time would find.
+// Names are told apart by their symbol id (Token.symbol), not by comparing their lexemes.
+// Names that are not declared in any enclosing block are globals, which stay keyed by name (depth GLOBAL) since
+// their declarations are only known as the top level statements run.
+// A block that declares no variables, like the one of if (x) { print x; }, gets no frame and no scope here, so the
+// depths count only the blocks with a frame
+public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final int GLOBAL = -1;
+
+    // the slots of the names declared so far in each enclosing block, innermost last
+    private final List<SymbolMap> scopes = new ArrayList<>();
+
+    /**
+     * Resolves a top level statement, the first time it is about to run. Its annotations do not depend on anything
+     * outside of it, so a statement that runs again (e.g. in watch mode) keeps them
+     */
+    void resolveTopLevel(Stmt statement) {
+        if (statement == null || statement.resolved) return;
+
+        statement.accept(this);
+        statement.resolved = true;
+    }
+
+    private void resolve(Stmt statement) {
+        if (statement != null) statement.accept(this);
+    }
+
+    private void resolve(Expr expression) {
+        if (expression != null) expression.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(BlockStmt blockStatement) {
+        // declarations are only ever statements of the block itself
+        boolean declares = false;
+        for (Stmt statement : blockStatement.blockStatementList) {
+            declares |= statement instanceof VarDecStmt;
+        }
+        if (!declares) {
+            for (Stmt statement : blockStatement.blockStatementList) {
+                resolve(statement);
+            }
+            blockStatement.slotCount = 0;
+            return null;
+        }
+
+        SymbolMap scope = new SymbolMap();
+        scopes.add(scope);
+        for (Stmt statement : blockStatement.blockStatementList) {
+            resolve(statement);
+        }
+        scopes.remove(scopes.size() - 1);
+
+        blockStatement.slotCount = scope.size();
+        return null;
+    }
+
+    @Override
+    public Void visitVarDecStmt(VarDecStmt varDecStatement) {
+        // the initialiser runs before the name is defined, so it still sees an outer variable of the same name
+        resolve(varDecStatement.initialiser);
+
+        if (scopes.isEmpty()) {
+            varDecStatement.slot = GLOBAL;
+            return null;
+        }
+
+        SymbolMap scope = scopes.get(scopes.size() - 1);
+        int slot = scope.get(varDecStatement.name.symbol);
+        if (slot == SymbolMap.MISSING) {
+            slot = scope.size();
+            scope.put(varDecStatement.name.symbol, slot);
+        }
+        varDecStatement.slot = slot;
+        return null;
+    }
+
+    @Override
+    public Void visitVariable(Variable expression) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            int slot = scopes.get(i).get(expression.name.symbol);
+            if (slot != SymbolMap.MISSING) {
+                expression.depth = scopes.size() - 1 - i;
+                expression.slot = slot;
+                return null;
+            }
+        }
+
+        expression.depth = GLOBAL;
+        expression.slot = GLOBAL;
+        return null;
+    }
+
+    @Override
+    public Void visitAssignment(Assignment assignment) {
+        resolve(assignment.expression);
+
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            int slot = scopes.get(i).get(assignment.name.symbol);
+            if (slot != SymbolMap.MISSING) {
+                assignment.depth = scopes.size() - 1 - i;
+                assignment.slot = slot;
+                return null;
+            }
+        }
+
+        assignment.depth = GLOBAL;
+        assignment.slot = GLOBAL;
+        return null;
+    }
+
+    @Override
+    public Void visitExprStmt(Stmt.ExprStmt expressionStatement) {
+        resolve(expressionStatement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.PrintStmt printStatement) {
+        resolve(printStatement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(IfStmt ifStatement) {
+        resolve(ifStatement.conditional);
+        resolve(ifStatement.thenStatement);
+        resolve(ifStatement.elseStatemeStmt);
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(Expr.Binary expression) {
+        resolve(expression.left);
+        resolve(expression.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnary(Expr.Unary expression) {
+        resolve(expression.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(Expr.Grouping expression) {
+        resolve(expression.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteral(Expr.Literal expression) {
+        return null;
+    }
+
+    @Override
+    public Void visitTernary(Expr.Ternary expression) {
+        resolve(expression.conditional);
+        resolve(expression.trueBranch);
+        resolve(expression.falseBranch);
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+package com.jlox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// The Lox string made by a concatenation, whichever engine runs it: a node pointing at its two halves, so that
+// concatenating is O(1) instead of copying both of them, e.g. for a script that builds its output with s = s + ...
+// The characters are only copied into one String when they are needed: when the value is printed (stringify() calls
+// toString()), compared by isEqual(), or read through the CharSequence methods. That String is kept and the halves are
+// dropped, so a rope is flattened at most once.
+// Lox strings are either a String or a Rope, the engines check for a CharSequence where they used to check for a String
+final class Rope implements CharSequence {
+    // shorter results are copied right away, a node and its later flattening would cost more than that
+    private static final int MIN_LENGTH = 64;
+
+    private CharSequence left;
+    private CharSequence right;
+    private final int length;
+
+    // set by the first flatten()
+    private String flat;
+
+    private Rope(CharSequence _left, CharSequence _right, int _length) {
+        this.left = _left;
+        this.right = _right;
+        this.length = _length;
+    }
+
+    /**
+     * The Lox value of left + right, both Strings or Ropes
+     */
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        int length = left.length() + right.length();
+        if (length < 0) {
+            // as String concatenation would fail
+            throw new OutOfMemoryError("Overflow: String length out of range");
+        }
+        if (length < MIN_LENGTH) {
+            return left.toString() + right.toString();
+        }
+        return new Rope(left, right, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flatten();
+        return flat;
+    }
+
+    // without recursion: a string built one piece at a time is a rope as deep as the number of pieces
+    private void flatten() {
+        StringBuilder builder = new StringBuilder(length);
+        Deque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+
+        while (!pending.isEmpty()) {
+            CharSequence part = pending.pop();
+            if (part instanceof Rope rope && rope.flat == null) {
+                pending.push(rope.right);
+                pending.push(rope.left);
+            }
+            else {
+                builder.append(part.toString());
+            }
+        }
+
+        flat = builder.toString();
+        left = null;
+        right = null;
+    }
+}
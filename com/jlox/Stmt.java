@@ -2,25 +2,32 @@ package com.jlox;
 
 import java.util.List;
 
+// Generated by com.jlox.tools.ASTGenerator, change the specs there and run it again
 // The child classes needs to be static so that they can be instantiated without the reference of the outer class 'Stmt'
-
 public abstract class Stmt {
+  // Below interface is implemented by the Visitor classes
   public interface Visitor<T> {
-    T visitExprStmt(ExprStmt expressionStatement);
-    T visitPrintStmt(PrintStmt printStmttatement);
-    T visitVarDecStmt(VarDecStmt varDecStatement);
-    T visitBlockStmt(BlockStmt  blockStatement);
-    T visitIfStmt(IfStmt  ifStatement);
+    T visitExprStmt(ExprStmt statement);
+    T visitPrintStmt(PrintStmt statement);
+    T visitVarDecStmt(VarDecStmt statement);
+    T visitBlockStmt(BlockStmt statement);
+    T visitIfStmt(IfStmt statement);
   }
 
-  abstract<R> R accept(Visitor<R> visitor);
+  // Below method is an abstract one, so all the sub classes that extends this base class, needs to define its body
+  // and this will select the proper visitor method based on the 'Stmt' object it is called from.
+  abstract <R> R accept(Visitor<R> visitor);
+
+  // set once the Resolver has annotated this top level statement
+  boolean resolved = false;
 
   static class ExprStmt extends Stmt {
+    @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitExprStmt(this);
     }
 
-    ExprStmt (Expr _expression) {
+    ExprStmt(Expr _expression) {
       this.expression = _expression;
     }
 
@@ -28,6 +35,7 @@ public abstract class Stmt {
   }
 
   static class PrintStmt extends Stmt {
+    @Override
     public <R> R accept(Visitor<R> visitor) {
       return visitor.visitPrintStmt(this);
     }
@@ -40,7 +48,8 @@ public abstract class Stmt {
   }
 
   static class VarDecStmt extends Stmt {
-    public <R> R accept (Visitor<R> visitor) {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVarDecStmt(this);
     }
 
@@ -51,10 +60,14 @@ public abstract class Stmt {
 
     final Token name;
     final Expr initialiser;
+
+    // the slot of the variable in its block's frame, set by the Resolver
+    int slot = Resolver.GLOBAL;
   }
 
   static class BlockStmt extends Stmt {
-    public <R> R accept (Visitor<R> visitor) {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBlockStmt(this);
     }
 
@@ -63,22 +76,26 @@ public abstract class Stmt {
     }
 
     final List<Stmt> blockStatementList;
+
+    // the number of variables the block declares, set by the Resolver. A block that declares none gets no frame, and
+    // is not counted in the depth of the variables used in it
+    int slotCount = 0;
   }
 
   static class IfStmt extends Stmt {
-    public <R> R accept (Visitor<R> visitor) {
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitIfStmt(this);
     }
 
-    IfStmt(Expr _conditional, Stmt _thenStatement, Stmt _elseStatement) {
+    IfStmt(Expr _conditional, Stmt _thenStatement, Stmt _elseStatemeStmt) {
       this.conditional = _conditional;
       this.thenStatement = _thenStatement;
-      this.elseStatemeStmt = _elseStatement;
+      this.elseStatemeStmt = _elseStatemeStmt;
     }
 
     final Expr conditional;
     final Stmt thenStatement;
     final Stmt elseStatemeStmt;
   }
-
 }
@@ -0,0 +1,72 @@
+package com.jlox;
+
+// A map from symbol ids (Token.symbol) to ints, by open addressing over two int arrays: no boxing and no hashing or
+// comparing of names. Ids are dense, so the id itself spreads well enough over the table
+final class SymbolMap {
+    static final int MISSING = -1;
+
+    // the symbol + 1 of each entry, 0 marks an empty slot
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+
+    SymbolMap() {
+        this.keys = new int[8];
+        this.values = new int[8];
+    }
+
+    /**
+     * The value of the symbol, MISSING when it has none
+     */
+    int get(int symbol) {
+        int mask = keys.length - 1;
+        int key = symbol + 1;
+        for (int index = symbol & mask; keys[index] != 0; index = (index + 1) & mask) {
+            if (keys[index] == key) return values[index];
+        }
+        return MISSING;
+    }
+
+    void put(int symbol, int value) {
+        int mask = keys.length - 1;
+        int key = symbol + 1;
+        int index = symbol & mask;
+        while (keys[index] != 0 && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+
+        if (keys[index] == 0) {
+            keys[index] = key;
+            size++;
+        }
+        values[index] = value;
+
+        // at most half full, like SymbolTable
+        if (size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+
+            int index = (oldKeys[i] - 1) & mask;
+            while (keys[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+        }
+    }
+}
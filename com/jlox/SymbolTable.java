@@ -0,0 +1,111 @@
+package com.jlox;
+
+import java.util.Arrays;
+
+// Interns the identifiers of one compilation
+// Every distinct name gets a dense id and a single String instance, so repeated names like loop counters
+// share one String. Lookups hash the characters straight out of the source, a String is only created the
+// first time a name is seen
+// The ids of a compilation's table only mean something within it. The ids Tokens carry come from the shared table of
+// the process instead, see sharedSymbol(), so that they stay the same across compilations, which the global variables
+// of the prompt and of --stream outlive
+final class SymbolTable {
+    private static final SymbolTable SHARED = new SymbolTable();
+
+    private String[] names = new String[64];
+    private int[] hashes = new int[64];
+    private int count = 0;
+
+    // open addressing table of (id + 1), 0 marks an empty slot
+    private int[] table = new int[128];
+
+    /**
+     * Returns the id of the identifier source[from, to), adding it to the table when it is new
+     */
+    int intern(CharSequence source, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        return intern(source, from, to, hash);
+    }
+
+    /**
+     * Same as intern(source, from, to) for callers that already computed the hash (31 * hash + c over the name)
+     * while reading the characters
+     */
+    int intern(CharSequence source, int from, int to, int hash) {
+        int mask = table.length - 1;
+        int index = mix(hash) & mask;
+        while (table[index] != 0) {
+            int id = table[index] - 1;
+            if (hashes[id] == hash && sameName(names[id], source, from, to)) {
+                return id;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return add(source.subSequence(from, to).toString(), hash, index);
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * The id of the name in the shared table, for Token.symbol. Synchronized, the segments of ParallelParser create
+     * their Tokens at the same time
+     */
+    static synchronized int sharedSymbol(String name) {
+        // the same hash as intern() computes, but cached by the String
+        return SHARED.intern(name, 0, name.length(), name.hashCode());
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int add(String name, int hash, int index) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+
+        int id = count++;
+        names[id] = name;
+        hashes[id] = hash;
+        table[index] = id + 1;
+
+        // keep the table at most half full so that probe sequences stay short
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int index = mix(hashes[id]) & mask;
+            while (table[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            table[index] = id + 1;
+        }
+    }
+
+    private static boolean sameName(String name, CharSequence source, int from, int to) {
+        if (name.length() != to - from) return false;
+
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(from + i)) return false;
+        }
+        return true;
+    }
+
+    // spreads the bits of String style hashes, which are poor in the low bits for short names
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -2,17 +2,46 @@ package com.jlox;
 public class Token {
     final TokenType tokenType;
     final Object literal;
-    final int line;
+    private final int line;
     public final String lexeme;
+    // the id of the name of an IDENTIFIER in the shared SymbolTable, what the Resolver and the globals key names by,
+    // -1 for every other token
+    final int symbol;
 
     public Token (TokenType _tokenType, Object _literal, int _line, String _lexeme) {
+        this(_tokenType, _literal, _line, _lexeme,
+             _tokenType == TokenType.IDENTIFIER ? SymbolTable.sharedSymbol(_lexeme) : -1);
+    }
+
+    Token (TokenType _tokenType, Object _literal, int _line, String _lexeme, int _symbol) {
         this.tokenType = _tokenType;
         this.literal = _literal;
         this.line = _line;
         this.lexeme = _lexeme;
+        this.symbol = _symbol;
+    }
+
+    int line() {
+        return line;
+    }
+
+    // A token of a top level declaration of the IncrementalParser. The tokens of a declaration share its lineShift, so
+    // an edit that adds or removes lines before the declaration moves all of them at once
+    static final class Shifted extends Token {
+        private final int[] lineShift;
+
+        Shifted(TokenType _tokenType, Object _literal, int _line, String _lexeme, int _symbol, int[] _lineShift) {
+            super(_tokenType, _literal, _line, _lexeme, _symbol);
+            this.lineShift = _lineShift;
+        }
+
+        @Override
+        int line() {
+            return super.line() + lineShift[0];
+        }
     }
 
     public String toString () {
-        return "Token Type: " + tokenType + " and " + "Lexeme: " + lexeme + " and " + "Literal: " + literal + " and " + "Line: " + line;
+        return "Token Type: " + tokenType + " and " + "Lexeme: " + lexeme + " and " + "Literal: " + literal + " and " + "Line: " + line();
     }
 }
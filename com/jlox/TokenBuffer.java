@@ -0,0 +1,266 @@
+package com.jlox;
+
+import java.util.Arrays;
+
+// Struct of arrays storage for the tokens produced by the Lexer
+// Instead of a Token object and a lexeme String per token, every token is 4 primitive entries in parallel arrays:
+// its type ordinal, the offset and length of its lexeme in the source and its line.
+// Lexemes, literals and Token objects are only created when somebody asks for them
+// Identifiers additionally keep their id in the compilation's SymbolTable, which also owns their lexeme
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // every power of ten up to 10^22 is exactly representable as a double
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // numbers with at most this many digits fit exactly in the 53 bit mantissa of a double
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    final CharSequence source;
+    final SymbolTable symbolTable;
+
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int[] symbols;
+    private int size = 0;
+
+    // the shared SymbolTable id + 1 of each symbol of symbolTable, 0 until token() first needs it. The segments of
+    // ParallelParser fill it at the same time: an entry that is lost to a race is only looked up again
+    private int[] sharedSymbols = new int[0];
+
+    // when set, the Tokens that token() creates move by it, see IncrementalParser
+    int[] lineShift = null;
+
+    /**
+     * @param sourceLength: the length of the part of the source that will be lexed, the arrays start at about a token
+     *                      for every 8 characters of it and double when they run out
+     */
+    TokenBuffer (CharSequence _source, SymbolTable _symbolTable, int sourceLength) {
+        this.source = _source;
+        this.symbolTable = _symbolTable;
+
+        int capacity = Math.max(16, sourceLength / 8);
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.lines = new int[capacity];
+        this.symbols = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        add(type, start, length, line, -1);
+    }
+
+    void addIdentifier(int start, int length, int line, int symbol) {
+        add(TokenType.IDENTIFIER, start, length, line, symbol);
+    }
+
+    private void add(TokenType type, int start, int length, int line, int symbol) {
+        if (size == types.length) {
+            grow();
+        }
+
+        types[size] = (byte)type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        symbols[size] = symbol;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int start(int index) {
+        return starts[index];
+    }
+
+    int length(int index) {
+        return lengths[index];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    /**
+     * The SymbolTable id of an IDENTIFIER token, -1 for every other token
+     */
+    int symbol(int index) {
+        return symbols[index];
+    }
+
+    String lexeme(int index) {
+        if (symbols[index] >= 0) {
+            // interned, all the occurrences of a name share one String
+            return symbolTable.name(symbols[index]);
+        }
+        return text(starts[index], starts[index] + lengths[index]);
+    }
+
+    /**
+     * Creates the literal value of the token, the numeric value for a NUMBER, the string without its enclosing "" for a STRING
+     * and null for every other token
+     */
+    Object literal(int index) {
+        switch (type(index)) {
+            case NUMBER:
+                return number(starts[index], starts[index] + lengths[index]);
+            case STRING:
+                return text(starts[index] + 1, starts[index] + lengths[index] - 1);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Appends the first count tokens of other, moving them by lineOffset lines. When other interned its identifiers
+     * in a different SymbolTable, symbolMap maps its symbol ids to the ones of this buffer's table
+     */
+    void append(TokenBuffer other, int count, int lineOffset, int[] symbolMap) {
+        while (size + count > types.length) {
+            grow();
+        }
+
+        System.arraycopy(other.types, 0, types, size, count);
+        System.arraycopy(other.starts, 0, starts, size, count);
+        System.arraycopy(other.lengths, 0, lengths, size, count);
+        for (int i = 0; i < count; i++) {
+            lines[size + i] = other.lines[i] + lineOffset;
+            int symbol = other.symbols[i];
+            symbols[size + i] = symbol >= 0 && symbolMap != null ? symbolMap[symbol] : symbol;
+        }
+        size += count;
+    }
+
+    /**
+     * Drops the first count tokens
+     */
+    void discard(int count) {
+        move(count, 0, size - count);
+        size -= count;
+    }
+
+    /**
+     * Replaces the tokens [from, to) with the first count tokens of replacement and moves the tokens after 'to' by
+     * offsetDelta characters and lineDelta lines, for sources that were edited in place
+     */
+    void replace(int from, int to, TokenBuffer replacement, int count, int offsetDelta, int lineDelta) {
+        int tail = size - to;
+        int newSize = from + count + tail;
+        while (newSize > types.length) {
+            grow();
+        }
+
+        if (to != from + count) {
+            move(to, from + count, tail);
+        }
+        if (offsetDelta != 0) {
+            for (int i = from + count; i < newSize; i++) {
+                starts[i] += offsetDelta;
+            }
+        }
+        if (lineDelta != 0) {
+            for (int i = from + count; i < newSize; i++) {
+                lines[i] += lineDelta;
+            }
+        }
+
+        System.arraycopy(replacement.types, 0, types, from, count);
+        System.arraycopy(replacement.starts, 0, starts, from, count);
+        System.arraycopy(replacement.lengths, 0, lengths, from, count);
+        System.arraycopy(replacement.lines, 0, lines, from, count);
+        System.arraycopy(replacement.symbols, 0, symbols, from, count);
+        size = newSize;
+    }
+
+    private void move(int from, int to, int count) {
+        System.arraycopy(types, from, types, to, count);
+        System.arraycopy(starts, from, starts, to, count);
+        System.arraycopy(lengths, from, lengths, to, count);
+        System.arraycopy(lines, from, lines, to, count);
+        System.arraycopy(symbols, from, symbols, to, count);
+    }
+
+    /**
+     * Materializes the token at index as a Token object
+     */
+    public Token token(int index) {
+        int symbol = symbols[index];
+        int shared = symbol >= 0 ? sharedSymbol(symbol) : -1;
+        if (lineShift != null) {
+            return new Token.Shifted(type(index), literal(index), lines[index], lexeme(index), shared, lineShift);
+        }
+        return new Token(type(index), literal(index), lines[index], lexeme(index), shared);
+    }
+
+    // looked up once per name rather than once per token
+    private int sharedSymbol(int symbol) {
+        int[] shared = sharedSymbols;
+        if (symbol >= shared.length) {
+            shared = Arrays.copyOf(shared, Math.max(symbol + 1, symbolTable.size()));
+            sharedSymbols = shared;
+        }
+
+        if (shared[symbol] == 0) {
+            shared[symbol] = SymbolTable.sharedSymbol(symbolTable.name(symbol)) + 1;
+        }
+        return shared[symbol] - 1;
+    }
+
+    /**
+     * Converts the NUMBER lexeme source[from, to), i.e. digits optionally followed by a '.' and more digits.
+     * When all the digits fit in a long that is exactly representable as a double, the value is that long divided by
+     * an exact power of ten, a single correctly rounded operation, so it equals what Double.parseDouble returns.
+     * Longer numbers take the Double.parseDouble slow path
+     */
+    private double number(int from, int to) {
+        if (to - from > MAX_EXACT_DIGITS + 1) {
+            return Double.parseDouble(text(from, to));
+        }
+
+        long digits = 0;
+        int digitCount = 0;
+        int fractionDigits = -1;
+        for (int i = from; i < to; i++) {
+            char c = source.charAt(i);
+            if (c == '.') {
+                fractionDigits = 0;
+                continue;
+            }
+
+            digits = digits * 10 + (c - '0');
+            digitCount++;
+            if (fractionDigits >= 0) fractionDigits++;
+        }
+
+        if (digitCount > MAX_EXACT_DIGITS) {
+            return Double.parseDouble(text(from, to));
+        }
+
+        return fractionDigits > 0 ? digits / POWERS_OF_TEN[fractionDigits] : digits;
+    }
+
+    private String text(int from, int to) {
+        return source.subSequence(from, to).toString();
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        symbols = Arrays.copyOf(symbols, capacity);
+    }
+}
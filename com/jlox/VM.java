@@ -0,0 +1,207 @@
+package com.jlox;
+
+import java.util.List;
+
+// A stack based virtual machine, the alternative to the tree walking Interpreter (jlox --vm)
+// The statements are compiled into a Chunk and run by a single switch dispatched loop over its code, with an Object[]
+// operand stack and an Object[] of local variable slots. Values, output and runtime errors are the ones of the
+// Interpreter, which is where isTruthy() and isEqual() come from, and PRINT writes to an OutputSink like it does
+public class VM {
+    // kept across interpret() calls like the Interpreter's globals, for the statement at a time modes
+    private final Environment globals = new Environment();
+
+    // what PRINT writes to
+    private final OutputSink out;
+
+    public VM() {
+        this(new OutputSink(System.out, OutputSink.FlushPolicy.WHEN_FULL));
+    }
+
+    VM(OutputSink _out) {
+        this.out = _out;
+    }
+
+    public void interpret(List<Stmt> statements) {
+        Chunk chunk = BytecodeCompiler.compile(statements);
+        try {
+            run(chunk);
+        }
+        catch (RuntimeError error) {
+            // what the script printed comes before the error
+            out.flush();
+            Jlox.runtimeError(error);
+        }
+        finally {
+            out.flush();
+        }
+    }
+
+    void run(Chunk chunk) {
+        int[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        Object[] stack = new Object[chunk.maxStack];
+        Object[] locals = new Object[chunk.localCount];
+        int sp = 0;
+        int pc = 0;
+
+        for (;;) {
+            switch (code[pc++]) {
+                case Chunk.CONSTANT:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case Chunk.NIL:
+                    stack[sp++] = null;
+                    break;
+                case Chunk.TRUE:
+                    stack[sp++] = true;
+                    break;
+                case Chunk.FALSE:
+                    stack[sp++] = false;
+                    break;
+                case Chunk.POP:
+                    sp--;
+                    break;
+
+                case Chunk.GET_GLOBAL:
+                    stack[sp++] = ((GlobalCache)constants[code[pc++]]).get(globals);
+                    break;
+                case Chunk.DEFINE_GLOBAL:
+                    globals.define((Token)constants[code[pc++]], stack[--sp]);
+                    break;
+                case Chunk.SET_GLOBAL:
+                    ((GlobalCache)constants[code[pc++]]).assign(globals, stack[sp - 1]);
+                    break;
+
+                case Chunk.GET_LOCAL:
+                    stack[sp++] = locals[code[pc++]];
+                    break;
+                case Chunk.DEFINE_LOCAL:
+                    locals[code[pc++]] = stack[--sp];
+                    break;
+                case Chunk.SET_LOCAL:
+                    locals[code[pc++]] = stack[sp - 1];
+                    break;
+
+                case Chunk.ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (double)left + (double)right;
+                    }
+                    else if (left instanceof CharSequence && right instanceof CharSequence) {
+                        stack[sp - 1] = Rope.concat((CharSequence)left, (CharSequence)right);
+                    }
+                    else {
+                        throw new RuntimeError(operator(chunk, pc - 1, TokenType.PLUS, "+"),
+                            "Operands must be two strings or two numbers");
+                    }
+                    break;
+                }
+                case Chunk.SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, pc - 1, TokenType.MINUS, "-", left, right);
+                    stack[sp - 1] = (double)left - (double)right;
+                    break;
+                }
+                case Chunk.MULTIPLY: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, pc - 1, TokenType.STAR, "*", left, right);
+                    stack[sp - 1] = (double)left * (double)right;
+                    break;
+                }
+                case Chunk.DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, pc - 1, TokenType.SLASH, "/", left, right);
+                    stack[sp - 1] = (double)left / (double)right;
+                    break;
+                }
+
+                // like the Interpreter, comparisons just cast their operands
+                case Chunk.GREATER: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = (double)stack[sp - 1] > (double)right;
+                    break;
+                }
+                case Chunk.GREATER_EQUALS: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = (double)stack[sp - 1] >= (double)right;
+                    break;
+                }
+                case Chunk.LESSER: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = (double)stack[sp - 1] < (double)right;
+                    break;
+                }
+                case Chunk.LESSER_EQUALS: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = (double)stack[sp - 1] <= (double)right;
+                    break;
+                }
+                case Chunk.EQUALS_EQUALS: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case Chunk.BANG_EQUALS: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+
+                case Chunk.NEGATE: {
+                    Object operand = stack[sp - 1];
+                    if (!(operand instanceof Double)) {
+                        throw new RuntimeError(operator(chunk, pc - 1, TokenType.MINUS, "-"), "Operand must be a number");
+                    }
+                    stack[sp - 1] = -(double)operand;
+                    break;
+                }
+                case Chunk.NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+
+                case Chunk.PRINT:
+                    out.printLine(stack[--sp]);
+                    break;
+
+                case Chunk.JUMP: {
+                    int offset = code[pc++];
+                    pc += offset;
+                    break;
+                }
+                case Chunk.JUMP_IF_FALSE: {
+                    int offset = code[pc++];
+                    if (!Interpreter.isTruthy(stack[--sp])) pc += offset;
+                    break;
+                }
+                case Chunk.JUMP_IF_NOT_TRUE: {
+                    int offset = code[pc++];
+                    if (!(boolean)stack[--sp]) pc += offset;
+                    break;
+                }
+
+                case Chunk.MISSING:
+                    throw new NullPointerException("missing expression on line " + chunk.lines[pc - 1]);
+
+                case Chunk.RETURN:
+                    return;
+
+                default:
+                    throw new IllegalStateException("unknown opcode " + code[pc - 1]);
+            }
+        }
+    }
+
+    private static void checkNumberOperands(Chunk chunk, int at, TokenType type, String lexeme, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator(chunk, at, type, lexeme), "Operand must be a number");
+    }
+
+    // the operator token of the instruction at, for its runtime error
+    private static Token operator(Chunk chunk, int at, TokenType type, String lexeme) {
+        return new Token(type, null, chunk.lines[at], lexeme);
+    }
+}
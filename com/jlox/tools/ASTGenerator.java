@@ -1,86 +1,191 @@
-package com.jlox.tools;
-
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Arrays;
-import java.util.List;
-
-public class ASTGenerator {
-    private static void generateASTClass(List<String> specs, String baseClsName, String ouptutDir) throws IOException {
-        String path = ouptutDir + '/'  + baseClsName + ".java"; 
-        System.out.println(path);
-        PrintWriter printWriter = new PrintWriter(path);
-
-        // Adding a comment
-        printWriter.println("// These are the V tupple of the CGG for lox");
-        printWriter.println("public abstract class " + baseClsName + "{ ");
-
-        defineVisitorInterface(printWriter, specs);
-        
-        printWriter.println("abstract<R> R accept(Visitor<R> visitor);");
-
-        for (String spec : specs) {
-            String nestedClsName = spec.split(":")[0].trim();
-            String fieldStr =  spec.split(":")[1].trim();
-            generateNestedClasses(printWriter, baseClsName, nestedClsName, fieldStr);
-        }
-
-        printWriter.println("}");
-
-
-        printWriter.close();
-        System.out.println("File written!");
-    }
-
-    static private void defineVisitorInterface(PrintWriter printWriter, List<String> specs) {
-        printWriter.println("       public interface Visitor<T> {");
-
-        for (String spec : specs) {
-            printWriter.println("T visit" + spec.split(":")[0].trim() + "(" + spec.split(":")[0].trim() + " expression);");
-        }
-
-        printWriter.println("       }");
-    }
-
-    static private void generateNestedClasses(PrintWriter printWriter, String baseClsName, String nestedClsName, String fieldStr) {
-       printWriter.println("    static class " + nestedClsName + " extends " + baseClsName + "{");
-        
-       // generating the implementation of the abstract method accept
-       printWriter.println("@Override");
-       printWriter.println("public <R> R accept(Visitor<R> visitor) {");
-       printWriter.println("return visitor.visit" + nestedClsName + "(this);");
-       printWriter.println("}");
-
-       // generating the constructor
-       printWriter.println("        " + nestedClsName + "(" + fieldStr + ") {");
-       for (String field : fieldStr.split(", ")) {
-        String instanceVarName = field.split(" ")[1];
-        printWriter.println("           this." + instanceVarName.substring(1) + "=" + instanceVarName + ";"); // done to convert _opertor to operator
-       }
-       printWriter.println("        }");
-
-       // generating the instance variables
-       for (String field : fieldStr.split(", ")) {
-        String instanceVarName = field.split(" ")[1];
-        printWriter.println("       final " + field.split(" ")[0] + " " + instanceVarName.substring(1) + ";"); // done to convert _opertor to operator
-       }
-
-       printWriter.println("    }");
-    }
-    
-    public static void main(String[] args) throws IOException {
-        List<String> specs = Arrays.asList(
-            "Binary: Expr _left, Token _operator, Expr _right",
-                "Unary: Token _operator, Expr _expression",
-                "Grouping: Expr _expression",
-                "Literal: Object _value"
-        );
-
-        specs = Arrays.asList(
-            "Expression: Expr expression",
-                "Print: Expr expression"
-        );
-
-        generateASTClass(specs, "Stmt", "/home/subho-yadav/jlox");
-    }
-}
+package com.jlox.tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes Expr.java and Stmt.java, run it from the root of the repository after changing the specs below:
+// java -cp bin com.jlox.tools.ASTGenerator [output directory, com/jlox by default]
+// A spec is "ClassName: Type _field, Type _field", the fields the parser sets through the constructor. The passes that
+// annotate the tree get their own fields, see extraFields(): a line of those is either a comment, an empty line, a
+// field with its initial value ("int slot = Resolver.GLOBAL"), or a final field the constructor initialises
+// ("final GlobalCache global = new GlobalCache(_name)", which may use the constructor parameters)
+public class ASTGenerator {
+    private static void generateASTClass(List<String> specs, Map<String, List<String>> extraFields, String baseClsName,
+                                         List<String> imports, String indent, String newline, String ouptutDir)
+            throws IOException {
+        Path path = Paths.get(ouptutDir, baseClsName + ".java");
+        System.out.println(path);
+        StringBuilder output = new StringBuilder();
+
+        output.append("package com.jlox;\n\n");
+        for (String imported : imports) {
+            output.append("import ").append(imported).append(";\n");
+        }
+        if (!imports.isEmpty()) output.append("\n");
+
+        output.append("// Generated by com.jlox.tools.ASTGenerator, change the specs there and run it again\n");
+        output.append("// The child classes needs to be static so that they can be instantiated without the ")
+            .append("reference of the outer class '").append(baseClsName).append("'\n");
+        output.append("public abstract class ").append(baseClsName).append(" {\n");
+
+        defineVisitorInterface(output, indent, specs, baseClsName);
+
+        output.append("\n");
+        output.append(indent)
+            .append("// Below method is an abstract one, so all the sub classes that extends this base class, ")
+            .append("needs to define its body\n");
+        output.append(indent).append("// and this will select the proper visitor method based on the '")
+            .append(baseClsName).append("' object it is called from.\n");
+        output.append(indent).append("abstract <R> R accept(Visitor<R> visitor);\n");
+
+        List<String> baseFields = extraFields.getOrDefault(baseClsName, List.of());
+        if (!baseFields.isEmpty()) {
+            output.append("\n");
+            for (String field : baseFields) {
+                output.append(field.isEmpty() ? "" : indent + field + (field.startsWith("//") ? "" : ";")).append("\n");
+            }
+        }
+
+        for (String spec : specs) {
+            String nestedClsName = spec.split(":")[0].trim();
+            String fieldStr = spec.split(":")[1].trim();
+            output.append("\n");
+            generateNestedClasses(output, indent, baseClsName, nestedClsName, fieldStr,
+                extraFields.getOrDefault(nestedClsName, List.of()));
+        }
+
+        output.append("}\n");
+
+        Files.writeString(path, output.toString().replace("\n", newline));
+        System.out.println("File written!");
+    }
+
+    static private void defineVisitorInterface(StringBuilder output, String indent, List<String> specs,
+                                               String baseClsName) {
+        String parameter = baseClsName.equals("Expr") ? "expression" : "statement";
+        output.append(indent).append("// Below interface is implemented by the Visitor classes\n");
+        output.append(indent).append("public interface Visitor<T> {\n");
+
+        for (String spec : specs) {
+            String nestedClsName = spec.split(":")[0].trim();
+            output.append(indent).append(indent).append("T visit").append(nestedClsName).append("(")
+                .append(nestedClsName).append(" ").append(parameter).append(");\n");
+        }
+
+        output.append(indent).append("}\n");
+    }
+
+    static private void generateNestedClasses(StringBuilder output, String indent, String baseClsName,
+                                              String nestedClsName, String fieldStr, List<String> extraFields) {
+        String member = indent + indent;
+        String body = member + indent;
+        output.append(indent).append("static class ").append(nestedClsName).append(" extends ").append(baseClsName)
+            .append(" {\n");
+
+        // generating the implementation of the abstract method accept
+        output.append(member).append("@Override\n");
+        output.append(member).append("public <R> R accept(Visitor<R> visitor) {\n");
+        output.append(body).append("return visitor.visit").append(nestedClsName).append("(this);\n");
+        output.append(member).append("}\n\n");
+
+        // generating the constructor, the final extra fields are initialised after the ones of the parameters
+        output.append(member).append(nestedClsName).append("(").append(fieldStr).append(") {\n");
+        for (String field : fieldStr.split(", ")) {
+            String instanceVarName = field.split(" ")[1];
+            // done to convert _opertor to operator
+            output.append(body).append("this.").append(instanceVarName.substring(1)).append(" = ")
+                .append(instanceVarName).append(";\n");
+        }
+        for (String field : extraFields) {
+            if (!field.startsWith("final ")) continue;
+            String[] declaration = field.split(" = ", 2);
+            String[] words = declaration[0].split(" ");
+            output.append(body).append("this.").append(words[words.length - 1]).append(" = ").append(declaration[1])
+                .append(";\n");
+        }
+        output.append(member).append("}\n\n");
+
+        // generating the instance variables
+        for (String field : fieldStr.split(", ")) {
+            String instanceVarName = field.split(" ")[1];
+            output.append(member).append("final ").append(field.split(" ")[0]).append(" ")
+                .append(instanceVarName.substring(1)).append(";\n");
+        }
+        for (String field : extraFields) {
+            String declaration = field.startsWith("final ") ? field.split(" = ", 2)[0] : field;
+            output.append(field.isEmpty() ? "" : member + declaration + (field.startsWith("//") ? "" : ";"))
+                .append("\n");
+        }
+
+        output.append(indent).append("}\n");
+    }
+
+    // the fields of the passes over the tree, by the name of the class they belong to
+    private static Map<String, List<String>> extraFields() {
+        Map<String, List<String>> fields = new LinkedHashMap<>();
+
+        fields.put("Binary", List.of(
+            "",
+            "// how the Interpreter evaluates this operator, rewritten as it sees the operand types, see BinaryNode",
+            "BinaryNode node = BinaryNode.UNINITIALIZED"));
+
+        for (String variable : List.of("Variable", "Assignment")) {
+            fields.put(variable, List.of(
+                "// for the Interpreter, when the variable is a global",
+                "final GlobalCache global = new GlobalCache(_name)",
+                "",
+                "// where the variable lives, set by the Resolver",
+                "int depth = Resolver.GLOBAL",
+                "int slot = Resolver.GLOBAL"));
+        }
+
+        fields.put("Stmt", List.of(
+            "// set once the Resolver has annotated this top level statement",
+            "boolean resolved = false"));
+
+        fields.put("VarDecStmt", List.of(
+            "",
+            "// the slot of the variable in its block's frame, set by the Resolver",
+            "int slot = Resolver.GLOBAL"));
+
+        fields.put("BlockStmt", List.of(
+            "",
+            "// the number of variables the block declares, set by the Resolver. A block that declares none gets no "
+                + "frame, and",
+            "// is not counted in the depth of the variables used in it",
+            "int slotCount = 0"));
+
+        return fields;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String outputDir = args.length > 0 ? args[0] : "com/jlox";
+
+        List<String> specs = Arrays.asList(
+            "Binary: Expr _left, Token _operator, Expr _right",
+                "Unary: Token _operator, Expr _expression",
+                "Grouping: Expr _expression",
+                "Literal: Object _value",
+                "Ternary: Expr _conditional, Expr _trueBranch, Expr _falseBranch",
+                "Variable: Token _name",
+                "Assignment: Token _name, Expr _expression"
+        );
+        // Expr.java is indented by 3 spaces and has CRLF line endings, Stmt.java by 2 spaces with LF ones
+        generateASTClass(specs, extraFields(), "Expr", List.of(), "   ", "\r\n", outputDir);
+
+        specs = Arrays.asList(
+            "ExprStmt: Expr _expression",
+                "PrintStmt: Expr _expression",
+                "VarDecStmt: Token _name, Expr _initialiser",
+                "BlockStmt: List<Stmt> _blockStatementList",
+                "IfStmt: Expr _conditional, Stmt _thenStatement, Stmt _elseStatemeStmt"
+        );
+        generateASTClass(specs, extraFields(), "Stmt", List.of("java.util.List"), "  ", "\n", outputDir);
+    }
+}
@@ -0,0 +1,261 @@
+package com.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Differential check of the execution engines, part of test/run.sh
+// Random programs run on the tree walking Interpreter as they were parsed, which is the reference, and then on every
+// engine with and without the Optimizer. Each run has to print the same output and the same runtime error.
+// A program that crashes the reference itself (e.g. comparing strings, or a ternary on a number, throw a Java
+// exception instead of a RuntimeError) does what no engine defines, it is counted and skipped.
+// The programs mix numbers with strings, booleans and nil so that the unboxed paths of the engines see every type,
+// nest blocks under if statements at the top level and in blocks, and some have blocks long enough for the
+// JitCompiler to split them or leave them to the ClosureCompiler
+// usage: EngineTest [programs] [seed]
+public class EngineTest {
+    private static final class Engine {
+        Engine(String _name, Function<OutputSink, Consumer<List<Stmt>>> _create) {
+            this.name = _name;
+            this.create = _create;
+        }
+
+        final String name;
+        final Function<OutputSink, Consumer<List<Stmt>>> create;
+    }
+
+    // shared by the runs, its timer thread keeps counting until the check exits
+    private static final Profiler PROFILER = new Profiler();
+
+    private static final List<Engine> ENGINES = List.of(
+        new Engine("tree", out -> new Interpreter(out)::interpret),
+        new Engine("profile", out -> new Interpreter(out, PROFILER)::interpret),
+        new Engine("vm", out -> new VM(out)::interpret),
+        new Engine("closures", out -> new ClosureCompiler(out)::interpret),
+        new Engine("jit", out -> new JitCompiler(out)::interpret));
+
+    private static final String CRASHED = "crashed: ";
+
+    public static void main(String[] args) {
+        int programs = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        int failures = 0;
+        int skipped = 0;
+        for (int i = 0; i < programs; i++) {
+            String source = new ProgramGenerator(new Random(seed + i)).program();
+            String expected = run(source, ENGINES.get(0), false);
+            if (expected.contains(CRASHED)) {
+                skipped++;
+                continue;
+            }
+
+            for (Engine engine : ENGINES) {
+                for (boolean optimize : new boolean[] { false, true }) {
+                    if (engine == ENGINES.get(0) && !optimize) continue;
+
+                    String actual = run(source, engine, optimize);
+                    if (!actual.equals(expected)) {
+                        failures++;
+                        System.out.println("FAIL seed " + (seed + i) + ", " + engine.name
+                            + (optimize ? " optimized" : "") + "\n--- program\n" + source
+                            + "--- tree\n" + expected + "--- " + engine.name + "\n" + actual);
+                    }
+                }
+            }
+        }
+
+        System.out.println("EngineTest: " + programs + " programs, " + skipped + " skipped, " + failures + " failures");
+        if (failures > 0) System.exit(1);
+    }
+
+    // what the program printed followed by its runtime error, of a fresh parse so that no engine sees the
+    // annotations another one left on the tree
+    private static String run(String source, Engine engine, boolean optimize) {
+        List<Stmt> statements = new Parser(new Lexer(source).scanTokens()).startParsing();
+        if (Jlox.hadError) throw new IllegalStateException("the generated program does not parse:\n" + source);
+        if (optimize) statements = Optimizer.optimize(statements);
+
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(errors, true, StandardCharsets.UTF_8));
+        try {
+            Jlox.hadRuntimeError = false;
+            OutputSink out = new OutputSink(new PrintStream(printed, true, StandardCharsets.UTF_8),
+                OutputSink.FlushPolicy.WHEN_FULL);
+            engine.create.apply(out).accept(statements);
+        }
+        catch (RuntimeException | StackOverflowError e) {
+            errors.writeBytes((CRASHED + e + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        finally {
+            System.setErr(err);
+        }
+        return printed.toString(StandardCharsets.UTF_8) + errors.toString(StandardCharsets.UTF_8);
+    }
+
+    // One statement per line, so that the line of a runtime error tells the statements apart
+    private static final class ProgramGenerator {
+        private final Random random;
+        private final StringBuilder source = new StringBuilder();
+        // the names declared in each enclosing block, the globals first
+        private final List<List<String>> scopes = new ArrayList<>();
+        // a program of numbers mostly, where the engines keep their doubles unboxed
+        private final boolean numeric;
+        // the statements left to generate
+        private int budget;
+
+        ProgramGenerator(Random _random) {
+            this.random = _random;
+            this.numeric = random.nextBoolean();
+            this.budget = random.nextInt(10) == 0 ? 2000 + random.nextInt(3000) : 20 + random.nextInt(80);
+        }
+
+        String program() {
+            // a first variable for the expressions to use
+            scopes.add(new ArrayList<>(List.of("g0")));
+            source.append("var g0 = 1;\n");
+            declare("g1", 0);
+            declare("g2", 0);
+            while (budget > 0) {
+                statement(0, true);
+            }
+            source.append("print g0;\n");
+            return source.toString();
+        }
+
+        // a declaration only where one is allowed, i.e. not as the branch of an if
+        private void statement(int depth, boolean declaration) {
+            budget--;
+            int choice = random.nextInt(100);
+            if (choice < 10 && depth < 4) {
+                block(depth + 1);
+            }
+            else if (choice < 22 && depth < 4) {
+                source.append("if (").append(random.nextBoolean() ? condition(0) : expression(0)).append(") ");
+                branch(depth);
+                if (random.nextBoolean()) {
+                    source.append("else ");
+                    branch(depth);
+                }
+            }
+            else if (choice < 35 && declaration) {
+                String name = scopes.size() == 1 ? "g" + random.nextInt(4) : "v" + depth + "_" + random.nextInt(4);
+                declare(name, depth);
+            }
+            else if (choice < 60) {
+                source.append("print ").append(expression(0)).append(";\n");
+            }
+            else {
+                String target = variable();
+                source.append(target).append(" = ").append(expression(0)).append(";\n");
+            }
+        }
+
+        // the then or else statement of an if, a block that declares variables more often than not
+        private void branch(int depth) {
+            if (random.nextInt(4) == 0) {
+                source.append("\n");
+                statement(depth + 1, false);
+            }
+            else {
+                block(depth + 1);
+            }
+        }
+
+        private void block(int depth) {
+            source.append("{\n");
+            scopes.add(new ArrayList<>());
+            int count = budget > 1000 && random.nextInt(3) == 0 ? 500 + random.nextInt(1000) : 1 + random.nextInt(8);
+            if (random.nextInt(4) != 0) declare("v" + depth + "_" + random.nextInt(4), depth);
+            for (int i = 0; i < count && budget > 0; i++) {
+                statement(depth, true);
+            }
+            scopes.remove(scopes.size() - 1);
+            source.append("}\n");
+        }
+
+        private void declare(String name, int depth) {
+            budget--;
+            source.append("var ").append(name);
+            if (numeric || random.nextInt(8) != 0) source.append(" = ").append(expression(0));
+            source.append(";\n");
+            List<String> scope = scopes.get(scopes.size() - 1);
+            if (!scope.contains(name)) scope.add(name);
+        }
+
+        // a declared name mostly, sometimes one no scope declares
+        private String variable() {
+            if (random.nextInt(500) == 0) return "missing";
+            List<String> names = new ArrayList<>();
+            for (List<String> scope : scopes) {
+                names.addAll(scope);
+            }
+            return names.get(random.nextInt(names.size()));
+        }
+
+        private String expression(int depth) {
+            if (numeric) return number(depth);
+
+            int choice = random.nextInt(depth > 3 ? 40 : 100);
+            if (choice < 15) return variable();
+            if (choice < 22) return number(depth);
+            if (choice < 28) return "\"s" + random.nextInt(3) + "\"";
+            if (choice < 32) return random.nextBoolean() ? "true" : "false";
+            if (choice < 34) return "nil";
+            if (choice < 40) return "nil == " + variable();
+            if (choice < 62) {
+                String[] operators = { "+", "+", "-", "*", "/", "==", "!=" };
+                return "(" + expression(depth + 1) + " " + operators[random.nextInt(operators.length)] + " "
+                    + expression(depth + 1) + ")";
+            }
+            if (choice < 70) return condition(depth);
+            if (choice < 78) {
+                return "(" + condition(depth + 1) + " ? " + expression(depth + 1) + " : "
+                    + expression(depth + 1) + ")";
+            }
+            if (choice < 84) return "!" + expression(depth + 1);
+            if (choice < 90) return "-(" + expression(depth + 1) + ")";
+            return "(" + variable() + " = " + expression(depth + 1) + ")";
+        }
+
+        // an arithmetic expression of number variables and literals
+        private String number(int depth) {
+            int choice = random.nextInt(depth > 3 ? 40 : 100);
+            if (choice < 25) return variable();
+            if (choice < 40) {
+                String[] literals = { "0", "1", "2", "3", "2.5", "7", "0.1", "100" };
+                return literals[random.nextInt(literals.length)];
+            }
+            if (choice < 80) {
+                String[] operators = { "+", "-", "*", "/" };
+                return "(" + number(depth + 1) + " " + operators[random.nextInt(operators.length)] + " "
+                    + number(depth + 1) + ")";
+            }
+            if (choice < 85) return "-" + number(depth + 1);
+            if (choice < 92) {
+                return "(" + condition(depth + 1) + " ? " + number(depth + 1) + " : " + number(depth + 1) + ")";
+            }
+            return "(" + variable() + " = " + number(depth + 1) + ")";
+        }
+
+        // a boolean, for the ternaries that take nothing else
+        private String condition(int depth) {
+            int choice = random.nextInt(10);
+            if (choice < 6) {
+                String[] comparisons = { "<", "<=", ">", ">=", "==", "!=" };
+                return "(" + number(depth + 1) + " " + comparisons[random.nextInt(comparisons.length)] + " "
+                    + number(depth + 1) + ")";
+            }
+            if (choice < 7) return random.nextBoolean() ? "true" : "false";
+            if (choice < 9) return "(" + expression(depth + 1) + " == " + expression(depth + 1) + ")";
+            return "!" + expression(depth + 1);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+// Differential check of the front ends, part of test/run.sh
+// Random sources go through the Lexer and Parser.startParsing(), which are the reference, and through:
+// - the ParallelLexer, cut into 2 to 7 chunks, which has to produce the same tokens, symbol ids and errors
+// - the ParallelParser, cut into 2 to 7 segments, which has to produce the same statements and errors
+// - the IncrementalParser, which has to end up with the same statements, token lines and errors after every edit
+// The sources are made of pieces of declarations, strings and comments that span lines and stray characters, so
+// that edits open and close strings, comments and blocks and run into syntax and lexer errors. The ones of the
+// ParallelParser are declarations that mostly parse, so that its segments get compared on more than an error
+// usage: FrontEndTest [sources] [seed]
+public class FrontEndTest {
+    private static final String[] PIECES = {
+        "var a = 1;\n", "print a + 2;\n", "{ var b = \"x\"; print b; }\n", "if (a == 1) print \"one\";\n",
+        "else print 2;\n", "print 3 ? 4 : 5;\n", "// comment\n", "/* c */ ", "\"str\n", "a = 7;\n", "{ ", "} ",
+        "print (1 + 2) * 3;\n", "foo", "bar", " ", "\n", ";", "\"", "/*", "*/", "var x;\n", "@", "1.5", "=", "(", ")",
+        "/* c \n */ ", "\"\n\n\"", "x*y/z", "\t\r\n   \n", "//x/*y\n", "/*/ a */",
+    };
+
+    // the pieces a source is made of, the rest only get typed in by the edits
+    private static final int SOURCE_PIECES = 13;
+
+    private static final int EDITS = 25;
+
+    // edit sequences that once went wrong: a source followed by the offset, removed and inserted of each edit
+    private static final Object[][] REGRESSIONS = {
+        // the last edit leaves an unterminated string that runs exactly to the end of the region lexed again, which
+        // was taken for the old tokens lining up and reported the error twice
+        {
+            "/* c */ var a = 1;\nprint 3 ? 4 : 5;\n\"str\n/* c */ ",
+            48, 1, ";", 43, 1, "\n", 21, 2, "", 38, 1, "", 14, 2, ")", 23, 2, "(", 27, 2, "", 6, 2, "\n",
+            32, 2, "var a = 1;\n", 5, 3, "\n", 21, 2, "print (1 + 2) * 3;\n", 62, 3, "/* c */ ",
+        },
+    };
+
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        int sources = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        for (int i = 0; i < REGRESSIONS.length; i++) {
+            Object[] regression = REGRESSIONS[i];
+            StringBuilder source = new StringBuilder((String)regression[0]);
+            IncrementalParser incremental = new IncrementalParser(source);
+            for (int j = 1; j < regression.length; j += 3) {
+                String what = "regression " + i + ", edit " + (j / 3 + 1);
+                if (!edit(what, source, incremental, (int)regression[j], (int)regression[j + 1],
+                        (String)regression[j + 2])) {
+                    break;
+                }
+            }
+        }
+
+        for (int i = 0; i < sources; i++) {
+            Random random = new Random(seed + i);
+            checkIncremental(seed + i, source(random, SOURCE_PIECES), random);
+            checkLexer(seed + i, source(random, PIECES.length).toString(), random);
+            checkParser(seed + i, declarations(random), random);
+        }
+
+        System.out.println("FrontEndTest: " + sources + " sources, " + failures + " failures");
+        if (failures > 0) System.exit(1);
+    }
+
+    private static StringBuilder source(Random random, int pieceCount) {
+        StringBuilder source = new StringBuilder();
+        int pieces = random.nextInt(60);
+        for (int i = 0; i < pieces; i++) {
+            source.append(PIECES[random.nextInt(pieceCount)]);
+        }
+        return source;
+    }
+
+    // top level declarations that parse, with a stray piece of any kind now and then
+    private static String declarations(Random random) {
+        StringBuilder source = new StringBuilder();
+        int count = random.nextInt(30);
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(100) == 0) source.append(PIECES[random.nextInt(PIECES.length)]);
+            declaration(random, source, 0, true);
+        }
+        return source.toString();
+    }
+
+    // an if statement, often with an else and with blocks as its branches, is where segments are cut wrong
+    private static void declaration(Random random, StringBuilder source, int depth, boolean declarationAllowed) {
+        int choice = random.nextInt(depth < 3 ? 10 : 6);
+        if (choice < 2 && declarationAllowed) source.append("var a").append(depth).append(" = 1;");
+        else if (choice < 4) source.append("print (a +\n 2) * 3;");
+        else if (choice < 5) source.append("a = a ? \"x;\" : 2; // }");
+        else if (choice < 6) source.append("/* ; } */ print a;");
+        else if (choice < 8) {
+            source.append("if (a == 1)").append(random.nextBoolean() ? "\n" : " ");
+            declaration(random, source, depth + 1, false);
+            if (random.nextBoolean()) {
+                source.append(random.nextBoolean() ? "\nelse " : " else ");
+                declaration(random, source, depth + 1, false);
+            }
+        }
+        else {
+            source.append("{");
+            int count = random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                source.append(random.nextBoolean() ? "\n" : " ");
+                declaration(random, source, depth + 1, true);
+            }
+            source.append(" }");
+        }
+        source.append(random.nextInt(3) == 0 ? " " : "\n");
+    }
+
+    private static void checkLexer(long seed, String source, Random random) {
+        int chunks = 2 + random.nextInt(6);
+        check("seed " + seed + ", " + chunks + " chunks of", source, tokens(() -> new Lexer(source).scanTokens()),
+            tokens(() -> ParallelLexer.scanTokens(source, chunks)));
+    }
+
+    private static void checkParser(long seed, String source, Random random) {
+        int segments = 2 + random.nextInt(6);
+        check("seed " + seed + ", " + segments + " segments of", source, parse(source),
+            result(() -> { }, () -> ParallelParser.parse(new Lexer(source).scanTokens(), segments)));
+    }
+
+    // random edits of the source, typing pieces and newlines in and deleting a few characters
+    private static void checkIncremental(long seed, StringBuilder source, Random random) {
+        IncrementalParser incremental = new IncrementalParser(source);
+        check("seed " + seed + ", the incremental parse of", source.toString(), parse(source.toString()),
+            result(incremental::reportErrors, incremental::statements));
+
+        for (int i = 0; i < EDITS; i++) {
+            int offset = random.nextInt(source.length() + 1);
+            int removed = Math.min(random.nextInt(4), source.length() - offset);
+            String inserted = random.nextInt(3) == 0 ? ""
+                : random.nextInt(3) == 0 ? "\n"
+                : PIECES[random.nextInt(PIECES.length)];
+
+            if (!edit("seed " + seed + ", edit " + (i + 1), source, incremental, offset, removed, inserted)) return;
+        }
+    }
+
+    // edits the source and the IncrementalParser alike, false when they no longer agree
+    private static boolean edit(String what, StringBuilder source, IncrementalParser incremental, int offset,
+                                int removed, String inserted) {
+        source.replace(offset, offset + removed, inserted);
+        incremental.edit(offset, removed, inserted);
+        String description = what + " (" + offset + ", " + removed + ", \"" + inserted + "\") to";
+        return check(description, source.toString(), parse(source.toString()),
+            result(incremental::reportErrors, incremental::statements));
+    }
+
+    private static String parse(String source) {
+        return result(() -> { }, () -> new Parser(new Lexer(source).scanTokens()).startParsing());
+    }
+
+    private static boolean check(String what, String source, String expected, String actual) {
+        if (expected.equals(actual)) return true;
+
+        failures++;
+        System.out.println("FAIL " + what + "\n--- source\n" + source + "\n--- expected\n"
+            + expected + "--- actual\n" + actual);
+        return false;
+    }
+
+    // the errors that lexing prints, followed by every token
+    private static String tokens(Supplier<TokenBuffer> lex) {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(errors, true, StandardCharsets.UTF_8));
+        TokenBuffer tokens;
+        try {
+            tokens = lex.get();
+        }
+        finally {
+            System.setOut(out);
+        }
+
+        StringBuilder result = new StringBuilder(errors.toString(StandardCharsets.UTF_8));
+        for (int i = 0; i < tokens.size(); i++) {
+            result.append(tokens.type(i)).append(' ').append(tokens.start(i)).append(' ').append(tokens.length(i))
+                .append(" line ").append(tokens.line(i)).append(" symbol ").append(tokens.symbol(i)).append(' ')
+                .append(tokens.lexeme(i)).append('\n');
+        }
+        return result.toString();
+    }
+
+    // the errors that reporting and parsing print, followed by the statements unless there was an error
+    private static String result(Runnable report, Supplier<List<Stmt>> parse) {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(errors, true, StandardCharsets.UTF_8));
+        List<Stmt> statements;
+        try {
+            Jlox.hadError = false;
+            report.run();
+            statements = parse.get();
+        }
+        finally {
+            System.setOut(out);
+        }
+
+        StringBuilder result = new StringBuilder(errors.toString(StandardCharsets.UTF_8));
+        if (Jlox.hadError) return result.append("had errors\n").toString();
+        if (statements == null) return result.append("no statements\n").toString();
+
+        Printer printer = new Printer();
+        for (Stmt statement : statements) {
+            result.append(statement.accept(printer)).append('\n');
+        }
+        return result.toString();
+    }
+
+    // the statements with the type, lexeme and line of each of their tokens
+    private static final class Printer implements Expr.Visitor<String>, Stmt.Visitor<String> {
+        private static String token(Token token) {
+            return token.tokenType + " " + token.lexeme + "@" + token.line();
+        }
+
+        private String print(Expr expression) {
+            return expression == null ? "null" : expression.accept(this);
+        }
+
+        private String print(Stmt statement) {
+            return statement == null ? "null" : statement.accept(this);
+        }
+
+        @Override
+        public String visitBinary(Expr.Binary expression) {
+            return "(" + token(expression.operator) + " " + print(expression.left) + " " + print(expression.right)
+                + ")";
+        }
+
+        @Override
+        public String visitUnary(Expr.Unary expression) {
+            return "(" + token(expression.operator) + " " + print(expression.expression) + ")";
+        }
+
+        @Override
+        public String visitGrouping(Expr.Grouping expression) {
+            return "(group " + print(expression.expression) + ")";
+        }
+
+        @Override
+        public String visitLiteral(Expr.Literal expression) {
+            Object value = expression.value;
+            return value == null ? "nil" : value.getClass().getSimpleName() + " " + value;
+        }
+
+        @Override
+        public String visitTernary(Expr.Ternary expression) {
+            return "(? " + print(expression.conditional) + " " + print(expression.trueBranch) + " "
+                + print(expression.falseBranch) + ")";
+        }
+
+        @Override
+        public String visitVariable(Expr.Variable expression) {
+            return token(expression.name);
+        }
+
+        @Override
+        public String visitAssignment(Expr.Assignment assignment) {
+            return "(= " + token(assignment.name) + " " + print(assignment.expression) + ")";
+        }
+
+        @Override
+        public String visitExprStmt(Stmt.ExprStmt expressionStatement) {
+            return "expression " + print(expressionStatement.expression);
+        }
+
+        @Override
+        public String visitPrintStmt(Stmt.PrintStmt printStatement) {
+            return "print " + print(printStatement.expression);
+        }
+
+        @Override
+        public String visitVarDecStmt(Stmt.VarDecStmt varDecStatement) {
+            return "var " + token(varDecStatement.name) + " " + print(varDecStatement.initialiser);
+        }
+
+        @Override
+        public String visitBlockStmt(Stmt.BlockStmt blockStatement) {
+            StringBuilder block = new StringBuilder("{");
+            for (Stmt statement : blockStatement.blockStatementList) {
+                block.append(' ').append(print(statement)).append(';');
+            }
+            return block.append(" }").toString();
+        }
+
+        @Override
+        public String visitIfStmt(Stmt.IfStmt ifStatement) {
+            return "if " + print(ifStatement.conditional) + " then " + print(ifStatement.thenStatement)
+                + " else " + print(ifStatement.elseStatemeStmt);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+#!/bin/bash
+# Builds jlox with its checks and runs them, from anywhere: bash test/run.sh
+# Uses the java and javac of JAVA_HOME when it is set, the ones on the PATH otherwise
+#
+# Every script of com/jlox/lox_scripts and test/scripts runs with each engine and front end mode of jlox, and has to
+# print, fail and exit like it does on the tree walking Interpreter. The Java checks of test/com/jlox run after them
+
+cd "$(dirname "$0")/.." || exit 1
+
+java=${JAVA_HOME:+$JAVA_HOME/bin/}java
+javac=${JAVA_HOME:+$JAVA_HOME/bin/}javac
+
+build=$(mktemp -d)
+trap 'rm -rf "$build"' EXIT
+
+"$javac" -Xlint:none -d "$build/bin" $(find com test -name '*.java') || exit 1
+
+failed=0
+
+fail() {
+    echo "FAIL $*"
+    failed=1
+}
+
+# runs a script with the given options, what it prints, its errors and its exit code go to $build/<name>.*
+run() {
+    local name=$1 script=$2
+    shift 2
+    "$java" -cp "$build/bin" com.jlox.Jlox "$@" "$script" > "$build/$name.out" 2> "$build/$name.err" < /dev/null
+    echo $? > "$build/$name.exit"
+}
+
+# the result of a mode has to match the one of the tree walker, its errors too unless ignoreErrors
+compare() {
+    local script=$1 mode=$2 ignoreErrors=$3
+    for part in out exit $([ "$ignoreErrors" = true ] || echo err); do
+        if ! cmp -s "$build/tree.$part" "$build/mode.$part"; then
+            fail "$script $mode: different $part"
+            diff "$build/tree.$part" "$build/mode.$part" | head -10
+        fi
+    done
+}
+
+mkdir "$build/scripts"
+for script in com/jlox/lox_scripts/*.lox test/scripts/*.lox; do
+    # --cache and --profile write next to the script
+    copy="$build/scripts/$(basename "$script")"
+    cp "$script" "$copy"
+
+    run tree "$copy"
+
+    for mode in --vm --closures --jit; do
+        run mode "$copy" $mode
+        compare "$script" $mode false
+    done
+
+    # the first run writes the .loxc cache, the second one runs from it
+    rm -f "${copy}c"
+    run mode "$copy" --cache
+    compare "$script" "--cache" false
+    run mode "$copy" --cache
+    compare "$script" "--cache (cached)" false
+
+    # the report of the profile goes to the errors
+    run mode "$copy" --profile
+    compare "$script" --profile true
+
+    # a script with a syntax error already ran what comes before it in --stream
+    if [ "$(cat "$build/tree.exit")" != 65 ]; then
+        run mode "$copy" --stream
+        compare "$script" --stream false
+    fi
+done
+
+# random sources and edits on the front ends, see FrontEndTest
+"$java" -cp "$build/bin" com.jlox.FrontEndTest || failed=1
+
+# random programs on every engine, see EngineTest
+"$java" -cp "$build/bin" com.jlox.EngineTest || failed=1
+
+if [ $failed = 0 ]; then
+    echo "ALL OK"
+fi
+exit $failed